@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Compares loopback throughput and round-trip latency with and without a
+// ByteRelay hop in the middle.
+//
+// Usage: java ByteRelayBench [megabytes] [roundTrips]
+public class ByteRelayBench {
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int roundTrips = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+        ServerSocketChannel backend = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        startEchoServer(backend);
+        int backendPort = ((InetSocketAddress) backend.getLocalAddress()).getPort();
+
+        ByteRelay relay = new ByteRelay("bench", 1);
+        ServerSocketChannel front = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        int frontPort = ((InetSocketAddress) front.getLocalAddress()).getPort();
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel client = front.accept();
+                    relay.relay(client, SocketChannel.open(new InetSocketAddress("127.0.0.1", backendPort)));
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1; // first round is warm-up
+            double direct = throughput(backendPort, megabytes);
+            double relayed = throughput(frontPort, megabytes);
+            double directRtt = roundTrip(backendPort, roundTrips);
+            double relayedRtt = roundTrip(frontPort, roundTrips);
+            if (report) {
+                System.out.printf("throughput direct:  %8.1f MB/s%n", direct);
+                System.out.printf("throughput relayed: %8.1f MB/s (%.0f%%)%n", relayed, 100 * relayed / direct);
+                System.out.printf("round trip direct:  %8.1f us%n", directRtt);
+                System.out.printf("round trip relayed: %8.1f us%n", relayedRtt);
+            }
+        }
+        relay.close();
+    }
+
+    // Backend echoes everything it receives; throughput runs read the echo back
+    private static void startEchoServer(ServerSocketChannel server) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel channel = server.accept();
+                    Thread echo = new Thread(() -> {
+                        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                        try {
+                            while (channel.read(buffer) >= 0) {
+                                buffer.flip();
+                                while (buffer.hasRemaining()) {
+                                    channel.write(buffer);
+                                }
+                                buffer.clear();
+                            }
+                            channel.close();
+                        } catch (IOException ignored) {
+                        }
+                    });
+                    echo.setDaemon(true);
+                    echo.start();
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static double throughput(int port, int megabytes) throws Exception {
+        long total = (long) megabytes * 1024 * 1024;
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+            Thread reader = new Thread(() -> {
+                ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+                long received = 0;
+                try {
+                    while (received < total) {
+                        int n = channel.read(in);
+                        if (n < 0) {
+                            break;
+                        }
+                        received += n;
+                        in.clear();
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            long start = System.nanoTime();
+            reader.start();
+            ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+            long sent = 0;
+            while (sent < total) {
+                out.clear();
+                sent += channel.write(out);
+            }
+            reader.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return megabytes / seconds;
+        }
+    }
+
+    private static double roundTrip(int port, int count) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer message = ByteBuffer.allocateDirect(64);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                message.clear();
+                while (message.hasRemaining()) {
+                    channel.write(message);
+                }
+                message.clear();
+                while (message.hasRemaining()) {
+                    channel.read(message);
+                }
+            }
+            return (System.nanoTime() - start) / 1000.0 / count;
+        }
+    }
+}
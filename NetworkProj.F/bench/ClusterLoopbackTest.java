@@ -0,0 +1,127 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.json.*;
+
+// Starts several ChatServer nodes joined by a ClusterBus on loopback, connects
+// one client per node and checks that broadcasts and private messages cross
+// nodes and that nicknames are unique cluster-wide.
+//
+// Usage: java ClusterLoopbackTest [nodes]
+public class ClusterLoopbackTest {
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        List<ChatServer> servers = new ArrayList<>();
+        List<Integer> busPorts = new ArrayList<>();
+
+        for (int i = 0; i < nodeCount; i++) {
+            ChatServer server = new ChatServer(0);
+            servers.add(server);
+            busPorts.add(freePort());
+            new Thread(server::start).start();
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            List<InetSocketAddress> peers = new ArrayList<>();
+            for (int j = 0; j < nodeCount; j++) {
+                if (j != i) {
+                    peers.add(InetSocketAddress.createUnresolved("127.0.0.1", busPorts.get(j)));
+                }
+            }
+            servers.get(i).joinCluster("127.0.0.1", busPorts.get(i), peers);
+        }
+        Thread.sleep(1500); // links to peers that started later retry after a second
+
+        List<TestClient> clients = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            TestClient client = new TestClient(servers.get(i).getPort());
+            client.send("{\"type\":\"set_nickname\",\"nickname\":\"user" + i + "\"}");
+            client.expect("nickname_set");
+            clients.add(client);
+        }
+        Thread.sleep(200); // presence propagates in the background
+
+        boolean ok = true;
+
+        TestClient duplicate = new TestClient(servers.get(nodeCount - 1).getPort());
+        duplicate.send("{\"type\":\"set_nickname\",\"nickname\":\"user0\"}");
+        ok &= check("cluster-wide nickname uniqueness", duplicate.expect("error") != null);
+        duplicate.close();
+
+        clients.get(0).send("{\"type\":\"public_message\",\"content\":\"hello cluster\"}");
+        for (int i = 1; i < nodeCount; i++) {
+            JSONObject msg = clients.get(i).expect("public_message");
+            ok &= check("broadcast reaches node " + i,
+                    msg != null && "hello cluster".equals(msg.getString("content")));
+        }
+
+        clients.get(nodeCount - 1).send("{\"type\":\"private_message\",\"recipient\":\"user0\","
+                + "\"content\":\"psst\"}");
+        ok &= check("private confirmation", clients.get(nodeCount - 1).expect("message_sent") != null);
+        JSONObject pm = clients.get(0).expect("private_message");
+        ok &= check("private message crosses nodes", pm != null && "psst".equals(pm.getString("content")));
+
+        for (TestClient client : clients) {
+            client.close();
+        }
+        for (ChatServer server : servers) {
+            server.stop();
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean check(String name, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + name);
+        return passed;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static class TestClient {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BlockingQueue<JSONObject> received = new LinkedBlockingQueue<>();
+
+        TestClient(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        received.add(new JSONObject(line));
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        // Waits for the next frame of the given type, skipping others
+        JSONObject expect(String type) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 3000;
+            while (System.currentTimeMillis() < deadline) {
+                JSONObject msg = received.poll(100, TimeUnit.MILLISECONDS);
+                if (msg != null && type.equals(msg.optString("type"))) {
+                    return msg;
+                }
+            }
+            return null;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
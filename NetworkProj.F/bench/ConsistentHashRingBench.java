@@ -0,0 +1,89 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Measures ConsistentHashRing lookup cost, load skew across backends and the
+// fraction of keys remapped when a backend joins or leaves.
+//
+// Usage: java ConsistentHashRingBench [backends] [keys] [virtualNodes]
+public class ConsistentHashRingBench {
+    public static void main(String[] args) {
+        int backends = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int virtualNodes = args.length > 2 ? Integer.parseInt(args[2]) : ConsistentHashRing.DEFAULT_VIRTUAL_NODES;
+
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(virtualNodes);
+        for (int i = 0; i < backends; i++) {
+            ring.add("10.0.0." + i + ":8080");
+        }
+
+        String[] keys = new String[keyCount];
+        long[] hashes = new long[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "nick:user" + i;
+            hashes[i] = ConsistentHashRing.hash(keys[i]);
+        }
+
+        // Warm up, then time hashed lookups and full string lookups separately
+        long sink = 0;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < keyCount; i++) {
+                sink += ring.get(hashes[i]).length();
+            }
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < keyCount; i++) {
+            sink += ring.get(hashes[i]).length();
+        }
+        double lookupNs = (System.nanoTime() - start) / (double) keyCount;
+
+        start = System.nanoTime();
+        for (int i = 0; i < keyCount; i++) {
+            sink += ring.get(keys[i]).length();
+        }
+        double hashAndLookupNs = (System.nanoTime() - start) / (double) keyCount;
+
+        Map<String, String> before = new HashMap<>();
+        Map<String, Integer> load = new HashMap<>();
+        for (String key : keys) {
+            String node = ring.get(key);
+            before.put(key, node);
+            load.merge(node, 1, Integer::sum);
+        }
+        int max = 0;
+        int min = Integer.MAX_VALUE;
+        for (int count : load.values()) {
+            max = Math.max(max, count);
+            min = Math.min(min, count);
+        }
+        double mean = keyCount / (double) backends;
+
+        ring.add("10.0.0." + backends + ":8080");
+        double addedMoved = movedFraction(ring, keys, before);
+        ring.remove("10.0.0." + backends + ":8080");
+        ring.remove("10.0.0.0:8080");
+        double removedMoved = movedFraction(ring, keys, before);
+
+        System.out.printf("backends=%d keys=%d virtualNodes=%d%n", backends, keyCount, virtualNodes);
+        System.out.printf("lookup (prehashed):   %.1f ns/op%n", lookupNs);
+        System.out.printf("lookup (hash+lookup): %.1f ns/op%n", hashAndLookupNs);
+        System.out.printf("skew: max/mean=%.3f min/mean=%.3f%n", max / mean, min / mean);
+        System.out.printf("remapped on add:    %.2f%% (ideal %.2f%%)%n",
+                addedMoved * 100, 100.0 / (backends + 1));
+        System.out.printf("remapped on remove: %.2f%% (ideal %.2f%%)%n",
+                removedMoved * 100, 100.0 / backends);
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static double movedFraction(ConsistentHashRing<String> ring, String[] keys,
+                                        Map<String, String> before) {
+        int moved = 0;
+        for (String key : keys) {
+            if (!ring.get(key).equals(before.get(key))) {
+                moved++;
+            }
+        }
+        return moved / (double) keys.length;
+    }
+}
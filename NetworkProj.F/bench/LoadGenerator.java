@@ -0,0 +1,630 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Headless load generator for ChatServer, ChatProxyServer and LoadBalancer.
+// Opens many concurrent sessions from a few selector loops, sets a nickname
+// on each and then sends public messages, private messages and files at
+// fixed aggregate rates. Every chat message carries its send time, so the
+// receiving session records end-to-end delivery latency; files are timed
+// from the file_transfer request to the recipient's file_transfer_complete.
+//
+// Usage: java LoadGenerator [--option value ...]
+//   --host H, --port P   target to load (localhost:8080)
+//   --embed MODE         start the target in-process on loopback instead:
+//                        server, proxy, mux (proxy with multiplexed upstream
+//                        links) or balancer (two clustered servers behind a
+//                        sticky-nickname load balancer)
+//   --clients N          concurrent sessions (1000)
+//   --threads N          selector loops (available processors)
+//   --connect-rate N     new connections per second (500)
+//   --public-rate N      public messages per second over all sessions (100)
+//   --private-rate N     private messages per second (500)
+//   --file-rate N        files per second (0); the server reads the file from
+//                        disk, so it must share this machine's filesystem
+//   --file-size BYTES    size of each file (65536)
+//   --message-size N     characters of padding per message (64)
+//   --warmup S           seconds of traffic before measuring (5)
+//   --duration S         measured seconds (30)
+public class LoadGenerator {
+    private static final String MARKER = "lg ";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long TICK_MS = 5;
+    private static final long REPORT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(5);
+    private static final long DRAIN_MS = 2000;
+
+    private final int clientCount;
+    private final int connectRate;
+    private final double publicRate;
+    private final double privateRate;
+    private final double fileRate;
+    private final int fileSize;
+    private final String padding;
+    private final long warmupNanos;
+    private final long durationNanos;
+
+    private final Loop[] loops;
+    private final List<Session> sessions = new ArrayList<>();
+    private final Map<String, Session> sessionsByNickname = new ConcurrentHashMap<>();
+    private final CountDownLatch nicknamesSet;
+    private final String runId = Integer.toString(ThreadLocalRandom.current().nextInt(1 << 20), 36);
+    private File payloadFile;
+
+    private final Traffic publicTraffic = new Traffic("public");
+    private final Traffic privateTraffic = new Traffic("private");
+    private final Traffic fileTraffic = new Traffic("file");
+    private final LongAdder fileBytes = new LongAdder();
+    private final LongAdder systemMessages = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private volatile String lastError;
+
+    public LoadGenerator(Map<String, String> options) throws IOException {
+        clientCount = intOption(options, "clients", 1000);
+        connectRate = intOption(options, "connect-rate", 500);
+        publicRate = intOption(options, "public-rate", 100);
+        privateRate = intOption(options, "private-rate", 500);
+        fileRate = intOption(options, "file-rate", 0);
+        fileSize = intOption(options, "file-size", 65536);
+        padding = "x".repeat(intOption(options, "message-size", 64));
+        warmupNanos = TimeUnit.SECONDS.toNanos(intOption(options, "warmup", 5));
+        durationNanos = TimeUnit.SECONDS.toNanos(intOption(options, "duration", 30));
+        nicknamesSet = new CountDownLatch(clientCount);
+
+        loops = new Loop[intOption(options, "threads", Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop();
+            Thread thread = new Thread(loops[i], "load-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void run(String host, int port) throws Exception {
+        if (fileRate > 0) {
+            byte[] content = new byte[fileSize];
+            ThreadLocalRandom.current().nextBytes(content);
+            payloadFile = File.createTempFile("loadgen", ".bin");
+            payloadFile.deleteOnExit();
+            Files.write(payloadFile.toPath(), content);
+        }
+
+        connect(host, port);
+        if (!nicknamesSet.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Only " + (clientCount - nicknamesSet.getCount())
+                    + " sessions got a nickname, continuing with those");
+        }
+        List<Session> active = new ArrayList<>();
+        for (Session session : sessions) {
+            if (session.ready && !session.closed) {
+                active.add(session);
+            }
+        }
+        if (active.size() < 2) {
+            System.err.println("Need at least two sessions with a nickname");
+            return;
+        }
+
+        System.out.println("Sending to " + active.size() + " sessions: " + (long) publicRate
+                + " public/s, " + (long) privateRate + " private/s, " + fileRate + " files/s");
+        drive(active);
+        Thread.sleep(DRAIN_MS); // let in-flight messages arrive
+        report(active.size());
+
+        for (Loop loop : loops) {
+            loop.close();
+        }
+    }
+
+    private void connect(String host, int port) throws InterruptedException {
+        System.out.println("Connecting " + clientCount + " sessions to " + host + ":" + port);
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        long start = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            // Stay under the connect rate so the server's accept backlog keeps up
+            long due = start + i * TimeUnit.SECONDS.toNanos(1) / connectRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+
+            try {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+                Session session = new Session(channel, loops[i % loops.length], "lg" + runId + "-" + i);
+                sessions.add(session);
+                sessionsByNickname.put(session.nickname, session);
+                session.loop.register(session);
+
+                JSONObject message = new JSONObject();
+                message.put("type", "set_nickname");
+                message.put("nickname", session.nickname);
+                session.send(message.toString());
+            } catch (IOException e) {
+                errors.increment();
+                lastError = "connect: " + e.getMessage();
+                nicknamesSet.countDown();
+            }
+        }
+    }
+
+    // Sends at the configured rates from one thread, catching up on every
+    // tick so the achieved rate does not depend on sleep accuracy
+    private void drive(List<Session> active) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        boolean measuring = warmupNanos == 0;
+        long publics = 0, privates = 0, files = 0;
+        long nextReport = start + REPORT_INTERVAL_NS;
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (!measuring && now >= measureFrom) {
+                resetStats();
+                measuring = true;
+                System.out.println("Warm-up done, measuring for "
+                        + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s");
+            }
+
+            double elapsed = (now - start) / 1e9;
+            for (; publics < (long) (publicRate * elapsed); publics++) {
+                sendPublic(pick(active));
+            }
+            for (; privates < (long) (privateRate * elapsed); privates++) {
+                sendPrivate(active);
+            }
+            for (; files < (long) (fileRate * elapsed); files++) {
+                sendFile(active);
+            }
+
+            if (now >= nextReport) {
+                progress((now - start) / 1_000_000_000L);
+                nextReport += REPORT_INTERVAL_NS;
+            }
+            Thread.sleep(TICK_MS);
+        }
+    }
+
+    private void sendPublic(Session sender) {
+        JSONObject message = new JSONObject();
+        message.put("type", "public_message");
+        message.put("content", MARKER + System.nanoTime() + " " + padding);
+        sender.send(message.toString());
+        publicTraffic.sent.increment();
+    }
+
+    private void sendPrivate(List<Session> active) {
+        Session sender = pick(active);
+        Session recipient = pickOther(active, sender);
+        JSONObject message = new JSONObject();
+        message.put("type", "private_message");
+        message.put("recipient", recipient.nickname);
+        message.put("content", MARKER + System.nanoTime() + " " + padding);
+        sender.send(message.toString());
+        privateTraffic.sent.increment();
+    }
+
+    // One file in flight per sender, so the recipient can find the start time
+    private void sendFile(List<Session> active) {
+        for (int attempt = 0; attempt < 8; attempt++) {
+            Session sender = pick(active);
+            if (sender.fileStart != 0) {
+                continue;
+            }
+            Session recipient = pickOther(active, sender);
+            JSONObject message = new JSONObject();
+            message.put("type", "file_transfer");
+            message.put("recipient", recipient.nickname);
+            message.put("file_path", payloadFile.getAbsolutePath());
+            sender.fileStart = System.nanoTime();
+            sender.send(message.toString());
+            fileTraffic.sent.increment();
+            return;
+        }
+    }
+
+    private static Session pick(List<Session> active) {
+        return active.get(ThreadLocalRandom.current().nextInt(active.size()));
+    }
+
+    private static Session pickOther(List<Session> active, Session sender) {
+        Session recipient;
+        do {
+            recipient = pick(active);
+        } while (recipient == sender);
+        return recipient;
+    }
+
+    private void resetStats() {
+        publicTraffic.reset();
+        privateTraffic.reset();
+        fileTraffic.reset();
+        fileBytes.reset();
+        systemMessages.reset();
+        errors.reset();
+        disconnects.reset();
+    }
+
+    private void progress(long seconds) {
+        System.out.printf("[%3ds] public %d sent / %d delivered (p99 %.2f ms), private %d / %d (p99 %.2f ms),"
+                        + " files %d / %d, errors %d%n", seconds,
+                publicTraffic.sent.sum(), publicTraffic.delivered.sum(), millis(publicTraffic.latency.getPercentile(99)),
+                privateTraffic.sent.sum(), privateTraffic.delivered.sum(), millis(privateTraffic.latency.getPercentile(99)),
+                fileTraffic.sent.sum(), fileTraffic.delivered.sum(), errors.sum());
+    }
+
+    private void report(int activeSessions) {
+        double seconds = durationNanos / 1e9;
+        System.out.println();
+        System.out.printf("%d sessions, %.0f s measured%n", activeSessions, seconds);
+        System.out.printf("%-8s %10s %12s %12s %9s %9s %9s %9s %9s%n", "traffic", "sent", "delivered",
+                "delivered/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Traffic traffic : new Traffic[] {publicTraffic, privateTraffic, fileTraffic}) {
+            LatencyHistogram latency = traffic.latency;
+            System.out.printf("%-8s %10d %12d %12.0f %9.3f %9.3f %9.3f %9.3f %9.3f%n", traffic.name,
+                    traffic.sent.sum(), traffic.delivered.sum(), traffic.delivered.sum() / seconds,
+                    millis(latency.getPercentile(50)), millis(latency.getPercentile(90)),
+                    millis(latency.getPercentile(99)), millis(latency.getPercentile(99.9)),
+                    millis(latency.getMax()));
+        }
+        System.out.printf("file data received: %.1f MB/s%n", fileBytes.sum() / seconds / (1024 * 1024));
+        System.out.println("system/presence messages: " + systemMessages.sum() + ", errors: " + errors.sum()
+                + ", disconnects: " + disconnects.sum());
+        if (lastError != null) {
+            System.out.println("last error: " + lastError);
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class Traffic {
+        final String name;
+        final LongAdder sent = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Traffic(String name) {
+            this.name = name;
+        }
+
+        // Latency from the send time embedded in the message content
+        void delivered(String content) {
+            if (content.startsWith(MARKER)) {
+                int end = content.indexOf(' ', MARKER.length());
+                long sentAt = Long.parseLong(content.substring(MARKER.length(), end));
+                latency.recordSince(sentAt);
+                delivered.increment();
+            }
+        }
+
+        void reset() {
+            sent.reset();
+            delivered.reset();
+            latency.reset();
+        }
+    }
+
+    // One selector serving a share of the sessions; writes are queued by the
+    // driver thread and flushed here
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final Queue<Session> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        final Queue<Session> pendingWrites = new ConcurrentLinkedQueue<>();
+        private volatile boolean isRunning = true;
+
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(Session session) {
+            pendingRegistrations.add(session);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                try {
+                    selector.select();
+
+                    Session session;
+                    while ((session = pendingRegistrations.poll()) != null) {
+                        session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+                        session.flush();
+                    }
+                    while ((session = pendingWrites.poll()) != null) {
+                        session.flush();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session target = (Session) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            target.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            target.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Load loop error: " + e.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Session) key.attachment()).close();
+            }
+        }
+
+        void close() {
+            isRunning = false;
+            selector.wakeup();
+        }
+    }
+
+    private final class Session {
+        final SocketChannel channel;
+        final Loop loop;
+        final String nickname;
+        final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        // transfer id -> sender, for files this session is receiving
+        final Map<String, Session> incomingFiles = new HashMap<>();
+        SelectionKey key;
+        volatile long fileStart;
+        volatile boolean ready;
+        boolean answered;
+        volatile boolean closed;
+
+        Session(SocketChannel channel, Loop loop, String nickname) {
+            this.channel = channel;
+            this.loop = loop;
+            this.nickname = nickname;
+        }
+
+        void send(String line) {
+            outbound.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            loop.pendingWrites.add(this);
+            loop.selector.wakeup();
+        }
+
+        void read(ByteBuffer buffer) {
+            try {
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                buffer.flip();
+                byte[] bytes = buffer.array();
+                int start = 0;
+                for (int i = 0; i < buffer.limit(); i++) {
+                    if (bytes[i] == '\n') {
+                        String line;
+                        if (partialLine.size() == 0) {
+                            line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                        } else {
+                            partialLine.write(bytes, start, i - start);
+                            line = new String(partialLine.toByteArray(), StandardCharsets.UTF_8);
+                            partialLine.reset();
+                        }
+                        onLine(line);
+                        start = i + 1;
+                    }
+                }
+                partialLine.write(bytes, start, buffer.limit() - start);
+                buffer.clear();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void onLine(String line) {
+            // Presence deltas and notices are the bulk of the traffic while ramping up
+            if (line.contains("\"system_message\"") || line.contains("\"presence\"")) {
+                systemMessages.increment();
+                return;
+            }
+
+            try {
+                JSONObject json = new JSONObject(line);
+                switch (json.optString("type", "")) {
+                    case "nickname_set":
+                        if (!answered) {
+                            ready = true;
+                            answered = true;
+                            nicknamesSet.countDown();
+                        }
+                        break;
+                    case "public_message":
+                        publicTraffic.delivered(json.getString("content"));
+                        break;
+                    case "private_message":
+                        privateTraffic.delivered(json.getString("content"));
+                        break;
+                    case "file_transfer_info":
+                        Session sender = sessionsByNickname.get(json.getString("sender"));
+                        if (sender != null) {
+                            incomingFiles.put(json.getString("transfer_id"), sender);
+                        }
+                        break;
+                    case "file_chunk":
+                        fileBytes.add(json.getString("chunk_data").length() * 3L / 4);
+                        break;
+                    case "file_transfer_complete":
+                        Session from = incomingFiles.remove(json.getString("transfer_id"));
+                        if (from != null && from.fileStart != 0) {
+                            fileTraffic.latency.recordSince(from.fileStart);
+                            fileTraffic.delivered.increment();
+                            from.fileStart = 0;
+                        }
+                        break;
+                    case "ping":
+                        send("{\"type\":\"pong\"}");
+                        break;
+                    case "error":
+                        errors.increment();
+                        lastError = json.optString("message");
+                        fileStart = 0; // a refused file must not block this sender
+                        if (!answered) {
+                            answered = true; // nickname refused
+                            nicknamesSet.countDown();
+                        }
+                        break;
+                    default:
+                        // progress and confirmations
+                }
+            } catch (JSONException | NumberFormatException | StringIndexOutOfBoundsException e) {
+                errors.increment();
+                lastError = "bad frame: " + e.getMessage();
+            }
+        }
+
+        void flush() {
+            if (closed || key == null) {
+                return;
+            }
+            try {
+                ByteBuffer head;
+                while ((head = outbound.peek()) != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    outbound.poll();
+                }
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (loop.isRunning) {
+                disconnects.increment();
+            }
+            if (!answered) {
+                answered = true; // turned away before getting a nickname
+                nicknamesSet.countDown();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    // Starts the requested topology on loopback and returns the port clients
+    // should connect to
+    private static int startEmbedded(String mode) throws Exception {
+        ChatServer server = startServer();
+        switch (mode) {
+            case "server":
+                return server.getPort();
+            case "proxy":
+            case "mux": {
+                int port = freePort();
+                ChatProxyServer proxy = new ChatProxyServer(port, "127.0.0.1", server.getPort(),
+                        mode.equals("mux") ? 4 : 0);
+                daemon(proxy::start, "embedded-proxy");
+                return port;
+            }
+            case "balancer": {
+                ChatServer second = startServer();
+                int busA = freePort();
+                int busB = freePort();
+                server.joinCluster("127.0.0.1", busA,
+                        List.of(InetSocketAddress.createUnresolved("127.0.0.1", busB)));
+                second.joinCluster("127.0.0.1", busB,
+                        List.of(InetSocketAddress.createUnresolved("127.0.0.1", busA)));
+                int port = freePort();
+                LoadBalancer balancer = new LoadBalancer(port, List.of("127.0.0.1", "127.0.0.1"),
+                        List.of(server.getPort(), second.getPort()), LoadBalancer.RoutingMode.STICKY_NICKNAME);
+                daemon(balancer::start, "embedded-balancer");
+                Thread.sleep(1500); // bus links to the peer retry after a second
+                return port;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown --embed mode: " + mode);
+        }
+    }
+
+    private static ChatServer startServer() throws IOException {
+        ChatServer server = new ChatServer(0);
+        if (!server.isRunning()) {
+            throw new IOException("Could not start embedded chat server");
+        }
+        daemon(server::start, "embedded-server");
+        return server;
+    }
+
+    private static void daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String host = options.getOrDefault("host", "localhost");
+        int port = intOption(options, "port", 8080);
+        if (options.containsKey("embed")) {
+            host = "127.0.0.1";
+            port = startEmbedded(options.get("embed"));
+        }
+
+        new LoadGenerator(options).run(host, port);
+        System.exit(0);
+    }
+}
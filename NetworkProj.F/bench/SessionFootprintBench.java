@@ -0,0 +1,167 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Heap held per idle session by ChatServer. The server runs in a JVM of its
+// own, so nothing on the client side is counted, and the heap is read after
+// a full collection with no sessions and again with every session idle.
+// Sessions come in two ways:
+//   mux     streams of one multiplexed proxy link (see MuxProtocol), the way
+//           very large numbers of users reach a node
+//   socket  a TCP connection each, with a reader thread each on the server;
+//           limited by the file descriptors and threads of the machine
+// Each session sets a nickname and then idles. Heartbeats and presence
+// deltas are pushed past the run so nothing is in flight while measuring;
+// the pending presence delta (one entry per nickname) is counted.
+//
+// Usage: java SessionFootprintBench [muxSessions] [socketSessions]
+public class SessionFootprintBench {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve();
+            return;
+        }
+        int muxSessions = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int socketSessions = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+
+        System.out.printf("%-8s %10s %16s %14s%n", "mode", "sessions", "heap used MB", "bytes/session");
+        if (muxSessions > 0) {
+            measure("mux", muxSessions);
+        }
+        if (socketSessions > 0) {
+            measure("socket", socketSessions);
+        }
+    }
+
+    private static void measure(String mode, int sessions) throws Exception {
+        Process server = new ProcessBuilder(System.getProperty("java.home") + "/bin/java",
+                "-Xmx3g", "-XX:+UseSerialGC",
+                "-Dchat.heartbeat.interval=3600", "-Dchat.heartbeat.timeout=7200",
+                "-Dchat.presence.interval=3600", "-Dchat.log.level=warn",
+                "-cp", System.getProperty("java.class.path"), SessionFootprintBench.class.getName(), "serve")
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            BufferedReader control = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+            Writer command = new PrintWriter(server.getOutputStream(), true);
+            int port = Integer.parseInt(control.readLine());
+
+            long before = heap(command, control);
+            List<AutoCloseable> connections = mode.equals("mux") ? openMux(port, sessions) : openSockets(port, sessions);
+            long after = heap(command, control);
+            System.out.printf("%-8s %10d %16.1f %14d%n", mode, sessions, after / 1e6, (after - before) / sessions);
+            for (AutoCloseable connection : connections) {
+                connection.close();
+            }
+        } finally {
+            server.destroy();
+            server.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long heap(Writer command, BufferedReader control) throws IOException {
+        command.write("heap\n");
+        command.flush();
+        return Long.parseLong(control.readLine());
+    }
+
+    // One link, every session a stream on it
+    private static List<AutoCloseable> openMux(int port, int sessions) throws Exception {
+        Socket link = new Socket("127.0.0.1", port);
+        CountDownLatch joined = new CountDownLatch(sessions);
+        Thread reader = new Thread(() -> {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(link.getInputStream(), StandardCharsets.UTF_8));
+                String frame;
+                while ((frame = in.readLine()) != null) {
+                    if (frame.contains("\"nickname_set\"")) {
+                        joined.countDown();
+                    }
+                }
+            } catch (IOException ignored) {
+                // closed
+            }
+        }, "bench-mux-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        Writer out = new PrintWriter(new java.io.BufferedWriter(
+                new java.io.OutputStreamWriter(link.getOutputStream(), StandardCharsets.UTF_8)));
+        out.write(MuxProtocol.hello("footprint", false) + "\n");
+        for (int i = 1; i <= sessions; i++) {
+            out.write(MuxProtocol.open(i) + "\n");
+            out.write(MuxProtocol.data(i, "{\"type\":\"set_nickname\",\"nickname\":\"u" + i + "\"}") + "\n");
+        }
+        out.flush();
+        await(joined, sessions);
+        List<AutoCloseable> connections = new ArrayList<>();
+        connections.add(link);
+        return connections;
+    }
+
+    private static List<AutoCloseable> openSockets(int port, int sessions) throws Exception {
+        List<AutoCloseable> connections = new ArrayList<>();
+        CountDownLatch joined = new CountDownLatch(sessions);
+        ByteBuffer response = ByteBuffer.allocate(4096);
+        for (int i = 1; i <= sessions; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            connections.add(channel);
+            channel.write(ByteBuffer.wrap(("{\"type\":\"set_nickname\",\"nickname\":\"u" + i + "\"}\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+            // The reply, so the session is fully set up before the next one
+            response.clear();
+            while (!new String(response.array(), 0, response.position(), StandardCharsets.UTF_8).contains("\n")) {
+                if (channel.read(response) < 0) {
+                    throw new IOException("server closed connection " + i);
+                }
+            }
+            joined.countDown();
+        }
+        await(joined, sessions);
+        return connections;
+    }
+
+    private static void await(CountDownLatch joined, int sessions) throws InterruptedException {
+        if (!joined.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException((sessions - joined.getCount()) + " of " + sessions + " sessions joined");
+        }
+    }
+
+    // Server side: prints its port, then the used heap after a full GC for
+    // every line on stdin
+    private static void serve() throws Exception {
+        ChatServer server = new ChatServer(0);
+        Thread acceptor = new Thread(server::start, "footprint-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        OutputStream stdout = System.out;
+        stdout.write((server.getPort() + "\n").getBytes(StandardCharsets.UTF_8));
+        stdout.flush();
+
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        while (commands.readLine() != null) {
+            long used = 0;
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(200);
+                used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            }
+            stdout.write((used + "\n").getBytes(StandardCharsets.UTF_8));
+            stdout.flush();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Message throughput of ShardedChatServer as the number of shards grows.
+// Clients send private messages to random other clients, so most of them
+// cross shards, with every 100th message a broadcast; each client keeps a
+// window of messages in flight and sends the next as one is acknowledged.
+// The clients run in the same process on their own selector threads, so on
+// a box with few cores they compete with the shards and flatten the curve;
+// give the bench at least twice the cores of the largest shard count.
+//
+// Usage: java ShardScalingBench [clients] [seconds] [maxShards] [clientThreads]
+public class ShardScalingBench {
+    private static final int WINDOW = 8;
+    private static final int BROADCAST_EVERY = 100;
+
+    public static void main(String[] args) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int maxShards = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(1, cores / 2);
+        int clientThreads = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(1, cores / 2);
+        System.setProperty("chat.log.shards.level", "warn");
+        System.setProperty("chat.log.listener.level", "warn");
+
+        System.out.printf("%d cores, %d clients on %d threads, %d s per run%n", cores, clients, clientThreads, seconds);
+        System.out.printf("%-7s %14s %14s %9s%n", "shards", "messages/s", "deliveries/s", "speedup");
+        double baseline = 0;
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            run(shards, clients, clientThreads, 2); // warm-up
+            double[] result = run(shards, clients, clientThreads, seconds);
+            if (baseline == 0) {
+                baseline = result[0];
+            }
+            System.out.printf("%-7d %14.0f %14.0f %8.2fx%n", shards, result[0], result[1], result[0] / baseline);
+            if (shards < maxShards && shards * 2 > maxShards) {
+                shards = maxShards / 2; // always end on maxShards
+            }
+        }
+        System.exit(0);
+    }
+
+    // messages sent per second and frames delivered per second
+    private static double[] run(int shards, int clients, int clientThreads, int seconds) throws Exception {
+        ShardedChatServer server = new ShardedChatServer(0, shards);
+        Thread acceptor = new Thread(server::start, "bench-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        LongAdder acked = new LongAdder();
+        LongAdder delivered = new LongAdder();
+        CountDownLatch joined = new CountDownLatch(clients);
+        List<Driver> drivers = new ArrayList<>();
+        for (int t = 0; t < clientThreads; t++) {
+            drivers.add(new Driver(clients, acked, delivered, joined));
+        }
+        for (int i = 0; i < clients; i++) {
+            drivers.get(i % clientThreads).connect(server.getPort(), i);
+        }
+        for (Driver driver : drivers) {
+            driver.start();
+        }
+        if (!joined.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("clients did not join");
+        }
+
+        for (Driver driver : drivers) {
+            driver.go();
+        }
+        long ackedBefore = acked.sum();
+        long deliveredBefore = delivered.sum();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        double[] result = {(acked.sum() - ackedBefore) / elapsed, (delivered.sum() - deliveredBefore) / elapsed};
+
+        for (Driver driver : drivers) {
+            driver.stopDriving();
+        }
+        server.stop();
+        return result;
+    }
+
+    // Drives a share of the clients from one selector
+    private static final class Driver extends Thread {
+        private final Selector selector = Selector.open();
+        private final List<Client> clients = new ArrayList<>();
+        private final int clientCount;
+        private final LongAdder acked;
+        private final LongAdder delivered;
+        private final CountDownLatch joined;
+        private volatile boolean sending;
+        private volatile boolean running = true;
+
+        Driver(int clientCount, LongAdder acked, LongAdder delivered, CountDownLatch joined) throws IOException {
+            super("bench-client");
+            setDaemon(true);
+            this.clientCount = clientCount;
+            this.acked = acked;
+            this.delivered = delivered;
+            this.joined = joined;
+        }
+
+        void connect(int port, int id) throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            Client client = new Client(channel, id);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+            client.write("{\"type\":\"set_nickname\",\"nickname\":\"u" + id + "\"}\n");
+        }
+
+        void go() {
+            sending = true;
+            selector.wakeup();
+        }
+
+        void stopDriving() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            boolean started = false;
+            try {
+                while (running) {
+                    selector.select();
+                    if (sending && !started) {
+                        started = true;
+                        for (Client client : clients) {
+                            for (int i = 0; i < WINDOW; i++) {
+                                client.sendNext();
+                            }
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Client client = (Client) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            client.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            client.read();
+                        }
+                    }
+                }
+                for (Client client : clients) {
+                    client.channel.close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private final class Client {
+            final SocketChannel channel;
+            final int id;
+            SelectionKey key;
+            final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+            long sent;
+
+            Client(SocketChannel channel, int id) {
+                this.channel = channel;
+                this.id = id;
+            }
+
+            void sendNext() throws IOException {
+                sent++;
+                if (sent % BROADCAST_EVERY == 0) {
+                    write("{\"type\":\"public_message\",\"content\":\"bench " + sent + "\"}\n");
+                    acked.increment(); // broadcasts are not acknowledged
+                    sendNext();
+                    return;
+                }
+                int peer = ThreadLocalRandom.current().nextInt(clientCount - 1);
+                if (peer >= id) {
+                    peer++;
+                }
+                write("{\"type\":\"private_message\",\"recipient\":\"u" + peer + "\",\"content\":\"bench " + sent + "\"}\n");
+            }
+
+            void write(String line) throws IOException {
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                if (out.remaining() < bytes.length) {
+                    ByteBuffer larger = ByteBuffer.allocate(out.capacity() * 2 + bytes.length);
+                    out.flip();
+                    larger.put(out);
+                    out = larger;
+                }
+                out.put(bytes);
+                flush();
+            }
+
+            void flush() throws IOException {
+                out.flip();
+                channel.write(out);
+                out.compact();
+                key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+
+            // Only the frame type matters, found without parsing the JSON
+            void read() throws IOException {
+                if (channel.read(in) < 0) {
+                    key.cancel();
+                    return;
+                }
+                byte[] bytes = in.array();
+                int start = 0;
+                for (int i = 0; i < in.position(); i++) {
+                    if (bytes[i] == '\n') {
+                        onLine(new String(bytes, start, i - start, StandardCharsets.ISO_8859_1));
+                        start = i + 1;
+                    }
+                }
+                in.limit(in.position()).position(start);
+                in.compact();
+            }
+
+            private void onLine(String line) throws IOException {
+                if (line.contains("\"message_sent\"")) {
+                    acked.increment();
+                    if (sending) {
+                        sendNext();
+                    }
+                } else if (line.contains("\"private_message\"") || line.contains("\"public_message\"")) {
+                    delivered.increment();
+                } else if (line.contains("\"nickname_set\"")) {
+                    joined.countDown();
+                }
+            }
+        }
+    }
+}
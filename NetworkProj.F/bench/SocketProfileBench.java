@@ -0,0 +1,186 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+// Chat latency and file transfer throughput under each SocketProfile, from
+// a client through a ByteRelay hop to a server, as with the proxy or load
+// balancer in front of ChatServer. Every socket on the path gets the profile
+// being measured.
+//
+// Latency: the client sends a small chat frame and the server answers with
+// two frames written and flushed separately, an acknowledgement and the
+// delivery, as ChatServer does when they come from different threads. With
+// Nagle on, the second frame waits until the first is acknowledged, which
+// the client delays: the stall TCP_NODELAY exists to avoid.
+//
+// Throughput: the client streams file_chunk frames (4 KB of data, Base64 in
+// JSON) to a server that reads and discards them.
+//
+// On loopback the buffer sizes barely matter; their effect shows on links
+// with a real round trip time.
+//
+// Usage: java SocketProfileBench [roundTrips] [transferSeconds]
+public class SocketProfileBench {
+    private static final String CHAT_FRAME = "{\"type\":\"private_message\",\"recipient\":\"bob\",\"content\":\"hello\"}\n";
+    private static final String ACK_FRAME = "{\"type\":\"message_sent\"}\n";
+
+    public static void main(String[] args) throws Exception {
+        int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.setProperty("chat.log.relay.level", "warn");
+
+        System.out.printf("%-12s %10s %10s %10s %12s%n", "profile", "p50 us", "p99 us", "max us", "MB/s");
+        for (SocketProfile profile : new SocketProfile[] {
+                SocketProfile.INTERACTIVE, SocketProfile.BULK, SocketProfile.PROXY}) {
+            try (Path path = new Path(profile)) {
+                latency(path, roundTrips / 10); // warm-up
+                LatencyHistogram rtt = latency(path, roundTrips);
+                throughput(path, 1); // warm-up
+                double megabytesPerSecond = throughput(path, seconds);
+                System.out.printf("%-12s %10.0f %10.0f %10.0f %12.1f%n", profile,
+                        rtt.getPercentile(50) / 1e3, rtt.getPercentile(99) / 1e3, rtt.getMax() / 1e3,
+                        megabytesPerSecond);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static LatencyHistogram latency(Path path, int roundTrips) throws IOException {
+        LatencyHistogram rtt = new LatencyHistogram();
+        try (Socket socket = path.connect()) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write("latency\n".getBytes(StandardCharsets.UTF_8));
+            byte[] frame = CHAT_FRAME.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < roundTrips; i++) {
+                long start = System.nanoTime();
+                out.write(frame);
+                out.flush();
+                in.readLine(); // acknowledgement
+                in.readLine(); // delivery
+                rtt.recordSince(start);
+            }
+        }
+        return rtt;
+    }
+
+    // Megabytes of frames per second, counted until the server has read them all
+    private static double throughput(Path path, int seconds) throws IOException {
+        byte[] data = new byte[4096];
+        Arrays.fill(data, (byte) 7);
+        byte[] frame = ("{\"type\":\"file_chunk\",\"transfer_id\":\"bench\",\"chunk_index\":0,\"chunk_data\":\""
+                + Base64.getEncoder().encodeToString(data) + "\"}\n").getBytes(StandardCharsets.UTF_8);
+        try (Socket socket = path.connect()) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write("throughput\n".getBytes(StandardCharsets.UTF_8));
+            long start = System.nanoTime();
+            long deadline = start + seconds * 1_000_000_000L;
+            while (System.nanoTime() < deadline) {
+                for (int i = 0; i < 64; i++) {
+                    out.write(frame);
+                }
+            }
+            socket.shutdownOutput();
+            long bytes = Long.parseLong(in.readLine());
+            return bytes / 1e6 / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    // Server and relay, both on loopback, with every socket under the profile
+    private static final class Path implements AutoCloseable {
+        private final SocketProfile profile;
+        private final ServerSocketChannel server;
+        private final ServerSocketChannel front;
+        private final ByteRelay relay = new ByteRelay("bench", 1);
+
+        Path(SocketProfile profile) throws IOException {
+            this.profile = profile;
+            server = listen(profile);
+            front = listen(profile);
+            InetSocketAddress serverAddress = (InetSocketAddress) server.getLocalAddress();
+            daemon("bench-server", () -> {
+                while (true) {
+                    SocketChannel channel = server.accept();
+                    profile.apply(channel);
+                    daemon("bench-session", () -> serve(channel.socket()));
+                }
+            });
+            daemon("bench-relay", () -> {
+                while (true) {
+                    SocketChannel client = front.accept();
+                    profile.apply(client);
+                    relay.relay(client, profile.open(serverAddress));
+                }
+            });
+        }
+
+        Socket connect() throws IOException {
+            return profile.connect("127.0.0.1", front.socket().getLocalPort());
+        }
+
+        private static ServerSocketChannel listen(SocketProfile profile) throws IOException {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            profile.applyToListener(channel);
+            return channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        private static void serve(Socket socket) throws IOException {
+            try (socket) {
+                InputStream rawIn = socket.getInputStream();
+                BufferedReader in = new BufferedReader(new InputStreamReader(rawIn, StandardCharsets.UTF_8));
+                OutputStream out = socket.getOutputStream();
+                if ("latency".equals(in.readLine())) {
+                    byte[] ack = ACK_FRAME.getBytes(StandardCharsets.UTF_8);
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        out.write(ack);
+                        out.flush();
+                        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    }
+                } else {
+                    long bytes = 0;
+                    char[] buffer = new char[64 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        bytes += read; // frames are ASCII, one byte per char
+                    }
+                    out.write((bytes + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        private interface Task {
+            void run() throws IOException;
+        }
+
+        private static void daemon(String name, Task task) {
+            Thread thread = new Thread(() -> {
+                try {
+                    task.run();
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            front.close();
+            relay.close();
+        }
+    }
+}
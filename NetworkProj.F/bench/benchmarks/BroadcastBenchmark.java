@@ -0,0 +1,41 @@
+package benchmarks;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// broadcastMessage fan-out to N in-memory sessions whose sinks discard the
+// bytes, so the result is the server-side cost per broadcast.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    private static final String FRAME = "{\"type\":\"public_message\",\"sender\":\"alice\","
+            + "\"content\":\"Hello everyone\",\"timestamp\":1700000000000}";
+
+    @Param({"10", "100", "1000"})
+    public int sessions;
+
+    private Object server;
+
+    @Setup
+    public void setUp() throws Throwable {
+        server = ChatHooks.NEW_CHAT_SERVER.invoke(0);
+        for (int i = 0; i < sessions; i++) {
+            ChatHooks.ATTACH_SESSION.invoke(server, "user" + i, Writer.nullWriter());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        ChatHooks.STOP.invoke(server);
+    }
+
+    @Benchmark
+    public void broadcast() throws Throwable {
+        ChatHooks.BROADCAST.invoke(server, FRAME);
+    }
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// FileTransfer.addChunk for every chunk of a file, and addChunk followed by
+// assembleFile, which writes received_<name> to the working directory.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileTransferBenchmark {
+    private static final int CHUNK_SIZE = 4096;
+
+    @Param({"64", "1024"})
+    public int chunkCount;
+
+    private byte[][] chunks;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        chunks = new byte[chunkCount][CHUNK_SIZE];
+        for (byte[] chunk : chunks) {
+            random.nextBytes(chunk);
+        }
+    }
+
+    @Benchmark
+    public Object addChunks() throws Throwable {
+        Object transfer = ChatHooks.NEW_FILE_TRANSFER.invoke("bench.bin",
+                (long) chunkCount * CHUNK_SIZE, chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            ChatHooks.ADD_CHUNK.invoke(transfer, i, chunks[i]);
+        }
+        return transfer;
+    }
+
+    @Benchmark
+    public void addChunksAndAssemble() throws Throwable {
+        Object transfer = addChunks();
+        ChatHooks.ASSEMBLE_FILE.invoke(transfer);
+        ChatHooks.CLEANUP_FILE.invoke(transfer);
+    }
+}
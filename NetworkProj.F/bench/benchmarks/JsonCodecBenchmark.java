@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+// JSON decode/encode cost of the frames ChatServer.processMessage handles,
+// plus one full processMessage round trip for a public message.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonCodecBenchmark {
+    private static final String PUBLIC_MESSAGE =
+            "{\"type\":\"public_message\",\"content\":\"Hello everyone, how is the project going?\"}";
+    private static final String CHUNK_DATA = "QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVo=".repeat(150);
+    private static final String FILE_CHUNK = "{\"type\":\"file_chunk\",\"transfer_id\":"
+            + "\"6f1c1f0e-8a84-4d7b-9f0a-6d3f2b1c9e11\",\"chunk_index\":17,\"chunk_data\":\""
+            + CHUNK_DATA + "\"}";
+
+    private Object server;
+    private String sessionId;
+
+    @Setup
+    public void setUp() throws Throwable {
+        server = ChatHooks.NEW_CHAT_SERVER.invoke(0);
+        sessionId = (String) ChatHooks.ATTACH_SESSION.invoke(server, "alice", Writer.nullWriter());
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        ChatHooks.STOP.invoke(server);
+    }
+
+    @Benchmark
+    public String decodePublicMessage() {
+        return new JSONObject(PUBLIC_MESSAGE).optString("content");
+    }
+
+    @Benchmark
+    public String decodeFileChunk() {
+        return new JSONObject(FILE_CHUNK).getString("chunk_data");
+    }
+
+    @Benchmark
+    public String encodeBroadcast() {
+        JSONObject broadcast = new JSONObject();
+        broadcast.put("type", "public_message");
+        broadcast.put("sender", "alice");
+        broadcast.put("content", "Hello everyone, how is the project going?");
+        broadcast.put("timestamp", 1_700_000_000_000L);
+        return broadcast.toString();
+    }
+
+    @Benchmark
+    public void processPublicMessage() throws Throwable {
+        ChatHooks.PROCESS.invoke(server, sessionId, PUBLIC_MESSAGE);
+    }
+}
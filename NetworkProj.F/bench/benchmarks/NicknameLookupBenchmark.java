@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// findClientByNickname with N connected users, looking up the first and the
+// last registered nickname and one that does not exist.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NicknameLookupBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int sessions;
+
+    private Object server;
+    private String lastNickname;
+
+    @Setup
+    public void setUp() throws Throwable {
+        server = ChatHooks.NEW_CHAT_SERVER.invoke(0);
+        for (int i = 0; i < sessions; i++) {
+            ChatHooks.ATTACH_SESSION.invoke(server, "user" + i, Writer.nullWriter());
+        }
+        lastNickname = "user" + (sessions - 1);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        ChatHooks.STOP.invoke(server);
+    }
+
+    @Benchmark
+    public boolean lookupFirst() throws Throwable {
+        return (boolean) ChatHooks.HAS_CLIENT.invoke(server, "user0");
+    }
+
+    @Benchmark
+    public boolean lookupLast() throws Throwable {
+        return (boolean) ChatHooks.HAS_CLIENT.invoke(server, lastNickname);
+    }
+
+    @Benchmark
+    public boolean lookupMissing() throws Throwable {
+        return (boolean) ChatHooks.HAS_CLIENT.invoke(server, "nobody");
+    }
+}
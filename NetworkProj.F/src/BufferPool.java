@@ -0,0 +1,56 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Byte buffers of one size, lent to sessions only while they have data in
+// flight, so an idle session holds none. Up to maxIdle returned buffers are
+// kept for the next borrower; the rest are left to the collector.
+//
+// Metrics, per pool name:
+//   <name>_buffers_lent               buffers out on loan
+//   <name>_buffers_allocated_total    buffers the pool had to create
+public final class BufferPool {
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ArrayDeque<byte[]> idle = new ArrayDeque<>(); // guarded by this
+    private final AtomicInteger lent = new AtomicInteger();
+    private final Metrics.Counter allocated;
+    private final Metrics.Gauge lentGauge;
+
+    public BufferPool(String name, int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+        allocated = Metrics.counter(name + "_buffers_allocated_total");
+        lentGauge = Metrics.gauge(name + "_buffers_lent", lent::get);
+    }
+
+    // Drops the pool's gauge; buffers still out may be returned
+    public void close() {
+        lentGauge.unregister();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public byte[] borrow() {
+        lent.incrementAndGet();
+        byte[] buffer;
+        synchronized (this) {
+            buffer = idle.poll();
+        }
+        if (buffer == null) {
+            allocated.increment();
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    public void release(byte[] buffer) {
+        lent.decrementAndGet();
+        synchronized (this) {
+            if (idle.size() < maxIdle) {
+                idle.push(buffer);
+            }
+        }
+    }
+}
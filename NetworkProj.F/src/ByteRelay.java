@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Protocol-agnostic byte relay. Moves raw bytes between pairs of channels on
+// a few selector loops using direct buffers, so proxies no longer decode and
+// re-encode every line or spend two threads per connection. EOF on one side
+// is propagated as a half-close (shutdownOutput) to the other side; the pair
+// is closed once both directions have finished.
+public class ByteRelay {
+    private static final Log LOG = Log.get("relay");
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final int bufferSize;
+    private final AtomicInteger activePairs = new AtomicInteger();
+
+    public ByteRelay(String name, int loopCount) throws IOException {
+        this(name, loopCount, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ByteRelay(String name, int loopCount, int bufferSize) throws IOException {
+        this.bufferSize = bufferSize;
+        this.loops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new Loop();
+            Thread thread = new Thread(loops[i], name + "-relay-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public int getActivePairs() {
+        return activePairs.get();
+    }
+
+    public void relay(SocketChannel client, SocketChannel server) throws IOException {
+        relay(client, server, null);
+    }
+
+    // clientPreamble holds bytes already read from the client (e.g. a routing
+    // frame) that must reach the server before anything else
+    public void relay(SocketChannel client, SocketChannel server, ByteBuffer clientPreamble)
+            throws IOException {
+        client.configureBlocking(false);
+        server.configureBlocking(false);
+        Pair pair = new Pair(client, server);
+        if (clientPreamble != null) {
+            pair.upstream.buffer.put(clientPreamble);
+        }
+        activePairs.incrementAndGet();
+        Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        loop.pending.add(pair);
+        loop.selector.wakeup();
+    }
+
+    public void close() {
+        for (Loop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+    }
+
+    private final class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<Pair> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Endpoint endpoint = (Endpoint) key.attachment();
+                        endpoint.pair.handle(endpoint, key);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Relay loop error: {}", e.getMessage());
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((Endpoint) key.attachment()).pair.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void registerPending() {
+            Pair pair;
+            while ((pair = pending.poll()) != null) {
+                try {
+                    pair.clientEnd.key = pair.clientEnd.channel.register(selector, 0, pair.clientEnd);
+                    pair.serverEnd.key = pair.serverEnd.channel.register(selector, 0, pair.serverEnd);
+                    // Flush any preamble, then settle interest ops
+                    pair.upstream.flush();
+                    pair.updateInterest();
+                } catch (IOException e) {
+                    pair.close();
+                }
+            }
+        }
+    }
+
+    private static final class Endpoint {
+        final Pair pair;
+        final SocketChannel channel;
+        SelectionKey key;
+        Direction reading;  // bytes read from this channel
+        Direction writing;  // bytes written to this channel
+
+        Endpoint(Pair pair, SocketChannel channel) {
+            this.pair = pair;
+            this.channel = channel;
+        }
+    }
+
+    // One direction of a pair; the buffer stays in fill mode between calls
+    private final class Direction {
+        final Endpoint source;
+        final Endpoint sink;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        boolean eof;
+        boolean done;
+
+        Direction(Endpoint source, Endpoint sink) {
+            this.source = source;
+            this.sink = sink;
+        }
+
+        void read() throws IOException {
+            int n = source.channel.read(buffer);
+            if (n < 0) {
+                eof = true;
+            }
+            flush();
+        }
+
+        void flush() throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                sink.channel.write(buffer);
+                buffer.compact();
+            }
+            if (eof && buffer.position() == 0 && !done) {
+                done = true;
+                sink.channel.shutdownOutput();
+            }
+        }
+    }
+
+    private final class Pair {
+        final Endpoint clientEnd;
+        final Endpoint serverEnd;
+        final Direction upstream;
+        final Direction downstream;
+        private boolean closed;
+
+        Pair(SocketChannel client, SocketChannel server) {
+            clientEnd = new Endpoint(this, client);
+            serverEnd = new Endpoint(this, server);
+            upstream = new Direction(clientEnd, serverEnd);
+            downstream = new Direction(serverEnd, clientEnd);
+            clientEnd.reading = upstream;
+            clientEnd.writing = downstream;
+            serverEnd.reading = downstream;
+            serverEnd.writing = upstream;
+        }
+
+        void handle(Endpoint endpoint, SelectionKey key) {
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    endpoint.writing.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    endpoint.reading.read();
+                }
+                if (upstream.done && downstream.done) {
+                    close();
+                } else {
+                    updateInterest();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void updateInterest() {
+            setInterest(clientEnd);
+            setInterest(serverEnd);
+        }
+
+        private void setInterest(Endpoint endpoint) {
+            int ops = 0;
+            Direction in = endpoint.reading;
+            Direction out = endpoint.writing;
+            if (!in.eof && in.buffer.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (out.buffer.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            endpoint.key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            activePairs.decrementAndGet();
+            closeQuietly(clientEnd.channel);
+            closeQuietly(serverEnd.channel);
+        }
+
+        private void closeQuietly(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
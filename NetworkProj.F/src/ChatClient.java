@@ -1,18 +1,100 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 import org.json.*;
 
+// Interactive client built from stages joined by queues, so a console prompt
+// that waits for the user never stops messages from being received:
+//   reader  - socket lines become events
+//   decoder - one thread applying events (server frames, prompt answers) in order
+//   console - prints output; the main thread reads user input
+//   writer  - drains outbound frames to the socket
+//
+// A lost connection is redialled with jittered backoff and resumed with the
+// token the server handed out, so the server replays what was missed.
 public class ChatClient {
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private static final int EVENT_QUEUE_CAPACITY = 10_000;
+    private static final int DEFAULT_CHUNK_SIZE = 4096;
+    private static final int MAX_NACK_ROUNDS = 3;
+    private static final int MAX_NACK_CHUNKS = 1024;
+    private static final int SENT_FILES_KEPT = 16;
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_CAP_MS = 30_000;
+
+    private volatile Socket socket;
+    private volatile BufferedReader in;
+    private volatile PrintWriter out; // null while reconnecting
     private Scanner consoleReader;
-    private String nickname;
-    private Map<String, FileTransfer> activeTransfers = new HashMap<>();
+    private volatile String nickname;
+    private volatile String resumeToken;
+    private final Map<String, IncomingFile> activeTransfers = new ConcurrentHashMap<>();
+    private final Map<String, OutgoingFile> uploads = new ConcurrentHashMap<>();
+    // Finished uploads, for chunks a recipient NACKs
+    private final Map<String, File> sentFiles = Collections.synchronizedMap(new LinkedHashMap<String, File>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, File> eldest) {
+            return size() > SENT_FILES_KEPT;
+        }
+    });
+    // Fetched after joining, then kept current from presence deltas
+    private final Set<String> roster = new ConcurrentSkipListSet<>();
     private String host;
     private int port;
 
+    // A full event queue stops the reader, which pushes back on the server
+    private final BlockingQueue<Runnable> events = new LinkedBlockingQueue<>(EVENT_QUEUE_CAPACITY);
+    private final BlockingQueue<String> outbound = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> display = new LinkedBlockingQueue<>();
+    private final Deque<Prompt> prompts = new ArrayDeque<>();
+    // Running stage threads; uploads and resends come and go from the
+    // console and decoder threads
+    private final Set<Thread> stages = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+
+    // A yes/no question waiting for the user
+    private static final class Prompt {
+        final String question;
+        final Consumer<Boolean> onAnswer;
+
+        Prompt(String question, Consumer<Boolean> onAnswer) {
+            this.question = question;
+            this.onAnswer = onAnswer;
+        }
+    }
+
+    // An offered file; chunks are buffered while the user decides
+    private static final class IncomingFile {
+        final FileTransfer transfer;
+        final String sender;
+        Boolean accepted; // null while the prompt is pending
+        boolean senderDone;
+        String sha256;
+        int nackRounds;
+
+        IncomingFile(FileTransfer transfer, String sender) {
+            this.transfer = transfer;
+            this.sender = sender;
+        }
+    }
+
+    // A file we are uploading; chunks go out only against server credit
+    private static final class OutgoingFile {
+        final File file;
+        final long size;
+        final Semaphore credits = new Semaphore(0);
+        volatile boolean cancelled;
+
+        OutgoingFile(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
     public ChatClient(String host, int port) {
         this.host = host;
         this.port = port;
@@ -21,20 +103,24 @@ public class ChatClient {
     public void start() {
         try {
             // Initialize connection
-            socket = new Socket(host, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            socket = SocketProfile.forEndpoint("client", SocketProfile.INTERACTIVE).connect(host, port);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = writerFor(socket);
             consoleReader = new Scanner(System.in);
+            running = true;
 
             System.out.println("Connected to chat server at " + host + ":" + port);
 
+            startStage("chat-writer", this::writeMessages);
+            startStage("chat-console", this::printMessages);
+
             // Set nickname first
             setNickname();
 
-            // Start message receiver thread
-            new Thread(this::receiveMessages).start();
+            startStage("chat-decoder", this::decodeMessages);
+            startStage("chat-reader", this::receiveMessages);
 
-            // Start message sender loop
+            // Console input loop on this thread
             sendMessages();
 
         } catch (IOException e) {
@@ -44,52 +130,259 @@ public class ChatClient {
         }
     }
 
+    private static PrintWriter writerFor(Socket socket) throws IOException {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+    }
+
+    private void startStage(String name, Runnable stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } finally {
+                stages.remove(Thread.currentThread());
+            }
+        }, name);
+        thread.setDaemon(true);
+        stages.add(thread);
+        thread.start();
+    }
+
     private void setNickname() {
         System.out.print("Enter your nickname: ");
         nickname = consoleReader.nextLine();
         JSONObject message = new JSONObject();
         message.put("type", "set_nickname");
         message.put("nickname", nickname);
-        out.println(message.toString());
+        send(message.toString());
+    }
+
+    private void send(String frame) {
+        outbound.add(frame);
     }
 
+    private void print(String line) {
+        display.add(line);
+    }
+
+    // Reader stage: socket lines become decoder events. Also owns the
+    // connection, redialling whenever it drops.
     private void receiveMessages() {
+        while (running) {
+            try {
+                String response;
+                while ((response = in.readLine()) != null) {
+                    String line = response;
+                    events.put(() -> processServerResponse(line));
+                }
+            } catch (IOException e) {
+                // handled below like a clean close
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!running) {
+                return;
+            }
+            out = null; // the writer holds frames until we are back
+            print("[System] Connection lost, reconnecting...");
+            reconnect();
+        }
+    }
+
+    // Full-jitter exponential backoff: a server restart does not get all of
+    // its clients back in the same instant
+    private void reconnect() {
         try {
-            String response;
-            while ((response = in.readLine()) != null) {
-                processServerResponse(response);
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        // The server dropped our uploads along with the connection
+        for (String transferId : uploads.keySet()) {
+            cancelUpload(transferId, "connection lost");
+        }
+        for (int attempt = 0; running; attempt++) {
+            long ceiling = Math.min(RECONNECT_CAP_MS, RECONNECT_BASE_MS << Math.min(attempt, 16));
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+            } catch (InterruptedException e) {
+                return;
             }
-        } catch (IOException e) {
-            if (!socket.isClosed()) {
-                System.err.println("Error receiving messages: " + e.getMessage());
+            try {
+                Socket next = SocketProfile.forEndpoint("client", SocketProfile.INTERACTIVE).connect(host, port);
+                BufferedReader nextIn = new BufferedReader(new InputStreamReader(next.getInputStream(),
+                        StandardCharsets.UTF_8));
+                PrintWriter nextOut = writerFor(next);
+                // Resume goes out before the writer sees the new connection,
+                // so it is always the first frame
+                nextOut.println(resumeFrame());
+                nextOut.flush();
+                socket = next;
+                in = nextIn;
+                out = nextOut;
+                return;
+            } catch (IOException e) {
+                // server still down, back off further
+            }
+        }
+    }
+
+    // Without a token (or once it expired) the server falls back to the nickname
+    private String resumeFrame() {
+        JSONObject message = new JSONObject();
+        if (resumeToken != null) {
+            message.put("type", "resume");
+            message.put("token", resumeToken);
+        } else {
+            message.put("type", "set_nickname");
+        }
+        message.put("nickname", nickname);
+        return message.toString();
+    }
+
+    // Decoder stage: the only thread touching transfer state
+    private void decodeMessages() {
+        while (running) {
+            try {
+                events.take().run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                print("Error handling message: " + e.getMessage());
+            }
+        }
+    }
+
+    // Console stage
+    private void printMessages() {
+        while (running) {
+            try {
+                System.out.println(display.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Writer stage; flushes once the queue is drained so bursts share a write.
+    // Frames typed while reconnecting wait here for the new connection, and
+    // a batch is kept until its flush succeeds.
+    private void writeMessages() {
+        List<String> batch = new ArrayList<>();
+        while (running) {
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(outbound.take());
+                }
+                outbound.drainTo(batch);
+                PrintWriter writer;
+                while ((writer = out) == null) {
+                    Thread.sleep(100);
+                }
+                for (String frame : batch) {
+                    writer.println(frame);
+                }
+                // checkError also flushes. After a failed write the reader
+                // notices the drop and reconnects; the batch goes out again
+                // on the new connection.
+                if (writer.checkError()) {
+                    while (out == writer) {
+                        Thread.sleep(100);
+                    }
+                    continue;
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
             }
         }
     }
 
     private void sendMessages() {
-        System.out.println("Enter messages (type '/file <recipient> <path>' to send a file):");
-        while (true) {
-            String input = consoleReader.nextLine();
+        print("Enter messages (type '/file <recipient>[,<recipient>...] <path>' to send a file, * for everyone;"
+                + " '/who' lists who is online):");
+        while (running) {
+            String input;
+            try {
+                input = consoleReader.nextLine();
+            } catch (NoSuchElementException e) {
+                return; // console closed
+            }
 
+            if (answerPrompt(input)) {
+                continue;
+            }
             if (input.equalsIgnoreCase("/exit")) {
+                quit();
                 closeResources();
                 System.exit(0);
             }
             else if (input.startsWith("/file ")) {
                 handleFileCommand(input);
             }
+            else if (input.equalsIgnoreCase("/who")) {
+                print("[System] Online (" + roster.size() + "): " + String.join(", ", roster));
+            }
             else {
                 sendChatMessage(input);
             }
         }
     }
 
+    // Tells the server this is a real leave, not a dropped connection
+    private void quit() {
+        running = false;
+        PrintWriter writer = out;
+        if (writer != null) {
+            JSONObject message = new JSONObject();
+            message.put("type", "quit");
+            writer.println(message.toString());
+            writer.flush();
+        }
+    }
+
+    // Queues a question; the next y/n line answers the oldest one, anything
+    // else typed meanwhile is handled as usual
+    private void ask(String question, Consumer<Boolean> onAnswer) {
+        synchronized (prompts) {
+            prompts.add(new Prompt(question, onAnswer));
+            if (prompts.size() == 1) {
+                print(question);
+            }
+        }
+    }
+
+    private boolean answerPrompt(String input) {
+        String answer = input.trim().toLowerCase(Locale.ROOT);
+        boolean yes = answer.equals("y") || answer.equals("yes");
+        if (!yes && !answer.equals("n") && !answer.equals("no")) {
+            return false;
+        }
+
+        Prompt prompt;
+        synchronized (prompts) {
+            prompt = prompts.poll();
+            if (prompt == null) {
+                return false;
+            }
+            if (!prompts.isEmpty()) {
+                print(prompts.peek().question);
+            }
+        }
+        // The answer is applied on the decoder, in order with server frames
+        try {
+            events.put(() -> prompt.onAnswer.accept(yes));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
     private void handleFileCommand(String input) {
         String[] parts = input.split(" ", 3);
         if (parts.length == 3) {
             startFileTransfer(parts[1], parts[2]);
         } else {
-            System.out.println("Invalid format. Use: /file recipient path");
+            print("Invalid format. Use: /file recipient path");
         }
     }
 
@@ -97,7 +390,7 @@ public class ChatClient {
         JSONObject json = new JSONObject();
         json.put("type", "public_message");
         json.put("content", message);
-        out.println(json.toString());
+        send(json.toString());
     }
 
     private void processServerResponse(String response) {
@@ -107,15 +400,51 @@ public class ChatClient {
 
             switch (type) {
                 case "public_message":
-                    System.out.println(json.getString("sender") + ": " + json.getString("content"));
+                    print(json.getString("sender") + ": " + json.getString("content"));
                     break;
 
                 case "private_message":
-                    System.out.println("[Private from " + json.getString("sender") + "]: " +
+                    print("[Private from " + json.getString("sender") + "]: " +
                             json.getString("content"));
                     break;
 
+                case "nickname_set":
+                    if (json.has("nickname")) {
+                        nickname = json.getString("nickname");
+                    }
+                    resumeToken = json.optString("resume_token", null);
+                    print("[System] Your nickname is " + nickname);
+                    requestRoster();
+                    break;
+
+                case "session_resumed":
+                    resumeToken = json.getString("resume_token");
+                    int dropped = json.optInt("dropped");
+                    print("[System] Reconnected as " + json.getString("nickname") + "; "
+                            + json.getInt("replayed") + " missed messages follow"
+                            + (dropped > 0 ? " (" + dropped + " older ones were lost)" : ""));
+                    // Missed presence deltas are among the replayed frames,
+                    // but older ones may have been dropped
+                    requestRoster();
+                    break;
+
+                case "roster":
+                    roster.clear();
+                    for (Object user : json.getJSONArray("users")) {
+                        roster.add((String) user);
+                    }
+                    print("[System] Online (" + roster.size() + "): " + String.join(", ", roster));
+                    break;
+
+                case "presence":
+                    handlePresence(json);
+                    break;
+
+                case "message_sent":
+                    break;
+
                 case "file_transfer_request":
+                case "file_transfer_info":
                     handleFileTransferRequest(json);
                     break;
 
@@ -123,8 +452,25 @@ public class ChatClient {
                     handleFileChunk(json);
                     break;
 
+                case "file_upload_ready":
+                case "file_upload_credit":
+                    OutgoingFile upload = uploads.get(json.getString("transfer_id"));
+                    if (upload != null) {
+                        upload.credits.release(json.getInt("credits"));
+                    }
+                    break;
+
+                case "file_upload_cancel":
+                    cancelUpload(json.getString("transfer_id"), json.getString("reason"));
+                    break;
+
+                case "file_transfer_nack":
+                    resendChunks(json);
+                    break;
+
                 case "file_transfer_progress":
-                    System.out.println("Transfer progress: " + json.getInt("progress") + "%");
+                    print("Transfer progress" + (json.has("recipient") ? " to " + json.getString("recipient") : "")
+                            + ": " + json.getInt("progress") + "%");
                     break;
 
                 case "file_transfer_complete":
@@ -132,99 +478,350 @@ public class ChatClient {
                     break;
 
                 case "system_message":
-                    System.out.println("[System] " + json.getString("content"));
+                    print("[System] " + json.getString("content"));
                     break;
 
                 case "error":
-                    System.err.println("Error: " + json.getString("message"));
+                    print("Error: " + json.getString("message"));
+                    break;
+
+                case "migrate":
+                    // The server is draining and closes us shortly; the
+                    // reconnect lands on another node, where this session's
+                    // token means nothing
+                    resumeToken = null;
+                    print("[System] Server is going away, moving to another server...");
+                    break;
+
+                case "ping":
+                    // Server heartbeat; an unanswered ping gets us disconnected
+                    JSONObject pong = new JSONObject();
+                    pong.put("type", "pong");
+                    send(pong.toString());
+                    break;
+
+                case "pong":
                     break;
 
                 default:
-                    System.out.println("Unknown message: " + response);
+                    print("Unknown message: " + response);
             }
         } catch (Exception e) {
-            System.out.println("Server: " + response); // Fallback for non-JSON messages
+            print("Server: " + response); // Fallback for non-JSON messages
+        }
+    }
+
+    private void requestRoster() {
+        JSONObject request = new JSONObject();
+        request.put("type", "get_roster");
+        send(request.toString());
+    }
+
+    // One line per delta, however many users it covers
+    private void handlePresence(JSONObject delta) {
+        List<String> joined = new ArrayList<>();
+        for (Object user : delta.getJSONArray("joined")) {
+            if (roster.add((String) user) && !user.equals(nickname)) {
+                joined.add((String) user);
+            }
+        }
+        List<String> left = new ArrayList<>();
+        for (Object user : delta.getJSONArray("left")) {
+            if (roster.remove(user)) {
+                left.add((String) user);
+            }
+        }
+        if (!joined.isEmpty()) {
+            print("[System] " + summarize(joined) + " joined the chat");
         }
+        if (!left.isEmpty()) {
+            print("[System] " + summarize(left) + " left the chat");
+        }
+    }
+
+    private static String summarize(List<String> users) {
+        int shown = Math.min(users.size(), 10);
+        String names = String.join(", ", users.subList(0, shown));
+        return shown < users.size() ? names + " and " + (users.size() - shown) + " others" : names;
     }
 
+    // A file on this machine is uploaded; any other path is left for the
+    // server to open from its own disk, as before
     private void startFileTransfer(String recipient, String filePath) {
         JSONObject message = new JSONObject();
         try {
-            message.put("type", "file_transfer");
-            message.put("recipient", recipient);
-            message.put("file_path", filePath);
-            out.println(message.toString());
+            File file = new File(filePath);
+            String transferId = UUID.randomUUID().toString();
+            if (file.isFile()) {
+                message.put("type", "file_upload_start");
+                message.put("transfer_id", transferId);
+                message.put("file_name", file.getName());
+                message.put("file_size", file.length());
+            } else {
+                message.put("type", "file_transfer");
+                message.put("file_path", filePath);
+            }
+            if (recipient.contains(",")) {
+                message.put("recipients", new JSONArray(recipient.split(",")));
+            } else {
+                message.put("recipient", recipient);
+            }
+
+            if (file.isFile()) {
+                OutgoingFile upload = new OutgoingFile(file, file.length());
+                uploads.put(transferId, upload);
+                send(message.toString());
+                startStage("chat-upload-" + file.getName(), () -> upload(transferId, upload));
+            } else {
+                send(message.toString());
+            }
         } catch (JSONException e) {
-            System.err.println("Error creating file transfer message: " + e.getMessage());
+            print("Error creating file transfer message: " + e.getMessage());
+        }
+    }
+
+    // Uploader stage, one per file: reads a chunk only when the server has
+    // credit for it, so a slow recipient slows this loop and at most a
+    // window of chunks sits in memory anywhere along the way
+    private void upload(String transferId, OutgoingFile upload) {
+        String sha256 = null;
+        try (InputStream in = new FileInputStream(upload.file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long chunkCount = (upload.size + DEFAULT_CHUNK_SIZE - 1) / DEFAULT_CHUNK_SIZE;
+            byte[] buffer = new byte[DEFAULT_CHUNK_SIZE];
+            for (long chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+                while (!upload.credits.tryAcquire(1, TimeUnit.SECONDS)) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                if (upload.cancelled) {
+                    return;
+                }
+                int length = in.readNBytes(buffer, 0, DEFAULT_CHUNK_SIZE);
+                if (length == 0) {
+                    throw new IOException("file shrank while uploading");
+                }
+                digest.update(buffer, 0, length);
+                send(uploadChunk(transferId, chunkIndex, buffer, length));
+            }
+            sha256 = FileTransfer.hex(digest.digest());
+            sentFiles.put(transferId, upload.file);
+            print("Uploaded " + upload.file.getName() + ", waiting for recipients...");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            print("Error reading " + upload.file.getName() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            return;
+        } finally {
+            uploads.remove(transferId);
         }
+        // Also sent after a read error; the server then cancels the upload
+        JSONObject end = new JSONObject();
+        end.put("type", "file_upload_end");
+        end.put("transfer_id", transferId);
+        if (sha256 != null) {
+            end.put("sha256", sha256);
+        }
+        send(end.toString());
+    }
+
+    private static String uploadChunk(String transferId, long chunkIndex, byte[] buffer, int length) {
+        JSONObject chunk = new JSONObject();
+        chunk.put("type", "file_upload_chunk");
+        chunk.put("transfer_id", transferId);
+        chunk.put("chunk_index", chunkIndex);
+        chunk.put("crc32c", FileTransfer.checksum(buffer, length));
+        chunk.put("chunk_data", Base64.getEncoder().encodeToString(
+                length == buffer.length ? buffer : Arrays.copyOf(buffer, length)));
+        return chunk.toString();
     }
 
+    // A recipient of one of our uploads NACKed some chunks; they are read
+    // again and sent to it alone, then an end frame. A file we no longer
+    // have is reported as failed.
+    private void resendChunks(JSONObject nack) throws JSONException {
+        String transferId = nack.getString("transfer_id");
+        String recipient = nack.getString("recipient");
+        JSONArray chunks = nack.getJSONArray("chunks");
+        File file = sentFiles.get(transferId);
+        JSONObject end = new JSONObject();
+        end.put("type", "file_upload_end");
+        end.put("transfer_id", transferId);
+        end.put("recipient", recipient);
+        if (file == null) {
+            end.put("status", "failed");
+            send(end.toString());
+            return;
+        }
+        startStage("chat-resend-" + transferId, () -> {
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                byte[] buffer = new byte[DEFAULT_CHUNK_SIZE];
+                for (int i = 0; i < chunks.length(); i++) {
+                    long chunkIndex = chunks.getLong(i);
+                    long offset = chunkIndex * DEFAULT_CHUNK_SIZE;
+                    int length = (int) Math.min(DEFAULT_CHUNK_SIZE, in.length() - offset);
+                    if (length <= 0) {
+                        throw new IOException("file shrank since it was sent");
+                    }
+                    in.seek(offset);
+                    in.readFully(buffer, 0, length);
+                    JSONObject chunk = new JSONObject(uploadChunk(transferId, chunkIndex, buffer, length));
+                    chunk.put("recipient", recipient);
+                    send(chunk.toString());
+                }
+                end.put("status", "success");
+            } catch (IOException e) {
+                end.put("status", "failed");
+            }
+            send(end.toString());
+        });
+    }
+
+    private void cancelUpload(String transferId, String reason) {
+        OutgoingFile upload = uploads.remove(transferId);
+        if (upload != null) {
+            upload.cancelled = true;
+            upload.credits.release(); // wake the uploader
+            print("Upload of " + upload.file.getName() + " cancelled: " + reason);
+        }
+    }
+
+    // The offer is recorded right away so chunks that arrive before the user
+    // answers are kept, not dropped
     private void handleFileTransferRequest(JSONObject request) throws JSONException {
         String transferId = request.getString("transfer_id");
         String sender = request.getString("sender");
         String fileName = request.getString("file_name");
         long fileSize = request.getLong("file_size");
-        int totalChunks = request.getInt("chunk_count");
+        int chunkSize = request.optInt("chunk_size", DEFAULT_CHUNK_SIZE);
+        int totalChunks = request.has("chunk_count") ? request.getInt("chunk_count")
+                : (int) ((fileSize + chunkSize - 1) / chunkSize);
 
-        System.out.println("\nIncoming file from " + sender + ":");
-        System.out.println("File: " + fileName);
-        System.out.println("Size: " + fileSize + " bytes");
-        System.out.print("Accept this file? (y/n): ");
+        if (activeTransfers.containsKey(transferId)) {
+            return;
+        }
+        activeTransfers.put(transferId, new IncomingFile(new FileTransfer(fileName, fileSize, totalChunks), sender));
+
+        print("\nIncoming file from " + sender + ":");
+        print("File: " + fileName);
+        print("Size: " + fileSize + " bytes");
+        ask("Accept " + fileName + " from " + sender + "? (y/n): ",
+                accepted -> answerFileTransfer(transferId, accepted));
+    }
+
+    private void answerFileTransfer(String transferId, boolean accepted) {
+        IncomingFile incoming = activeTransfers.get(transferId);
+        if (incoming == null) {
+            return;
+        }
 
-        String answer = consoleReader.nextLine();
         JSONObject response = new JSONObject();
         response.put("type", "file_transfer_response");
         response.put("transfer_id", transferId);
-        response.put("accepted", answer.equalsIgnoreCase("y"));
-        out.println(response.toString());
-
-        if (answer.equalsIgnoreCase("y")) {
-            activeTransfers.put(transferId, new FileTransfer(fileName, fileSize, totalChunks));
-            System.out.println("Ready to receive file...");
+        response.put("accepted", accepted);
+        send(response.toString());
+
+        incoming.accepted = accepted;
+        if (!accepted) {
+            activeTransfers.remove(transferId);
+            incoming.transfer.cleanup();
+        } else if (incoming.senderDone) {
+            finishTransfer(transferId, incoming);
+        } else {
+            print("Ready to receive file...");
         }
     }
 
     private void handleFileChunk(JSONObject chunk) throws JSONException {
         String transferId = chunk.getString("transfer_id");
-        FileTransfer transfer = activeTransfers.get(transferId);
-        if (transfer != null) {
+        IncomingFile incoming = activeTransfers.get(transferId);
+        if (incoming != null) {
             int chunkIndex = chunk.getInt("chunk_index");
             byte[] data = Base64.getDecoder().decode(chunk.getString("chunk_data"));
-            transfer.addChunk(chunkIndex, data);
+            incoming.transfer.addChunk(chunkIndex, data, chunk.optLong("crc32c", -1));
+            // The last of the chunks we NACKed
+            if (incoming.nackRounds > 0 && Boolean.TRUE.equals(incoming.accepted) && incoming.transfer.isComplete()) {
+                finishTransfer(transferId, incoming);
+            }
         }
     }
 
     private void handleTransferCompletion(JSONObject json) throws JSONException {
         String transferId = json.getString("transfer_id");
-        FileTransfer transfer = activeTransfers.get(transferId);
+        IncomingFile incoming = activeTransfers.get(transferId);
+
+        if (incoming == null && json.has("recipients")) {
+            // Our own upload finished; says who got it
+            JSONObject outcomes = json.getJSONObject("recipients");
+            StringBuilder summary = new StringBuilder("File transfer " + json.getString("status") + ":");
+            for (String recipient : outcomes.keySet()) {
+                summary.append(' ').append(recipient).append('=').append(outcomes.getString(recipient));
+            }
+            print(summary.toString());
+        } else if (incoming != null && json.getString("status").equals("failed")) {
+            print("File transfer of " + incoming.transfer.getFileName() + " from " + incoming.sender + " failed");
+            activeTransfers.remove(transferId);
+            incoming.transfer.cleanup();
+        } else if (incoming != null) {
+            incoming.senderDone = true;
+            incoming.sha256 = json.optString("sha256", null);
+            if (Boolean.TRUE.equals(incoming.accepted)) {
+                finishTransfer(transferId, incoming);
+            } else {
+                print(incoming.transfer.getFileName() + " from " + incoming.sender
+                        + " has arrived and is waiting for your answer");
+            }
+        }
+    }
 
-        if (transfer != null) {
-            try {
-                if (transfer.isComplete()) {
-                    transfer.assembleFile();
-                    System.out.println("File transfer complete. Saved as: " + transfer.getFileName());
-                } else {
-                    System.out.println("Warning: File transfer incomplete");
-                }
-            } catch (IOException e) {
-                System.err.println("Error saving file: " + e.getMessage());
-            } finally {
-                activeTransfers.remove(transferId);
+    // Chunks still missing, or dropped for a bad CRC, are NACKed a few times
+    // before the transfer is given up; the transfer stays active meanwhile
+    private void finishTransfer(String transferId, IncomingFile incoming) {
+        FileTransfer transfer = incoming.transfer;
+        if (!transfer.isComplete() && incoming.nackRounds < MAX_NACK_ROUNDS) {
+            incoming.nackRounds++;
+            List<Integer> missing = transfer.missingChunks(MAX_NACK_CHUNKS);
+            JSONObject nack = new JSONObject();
+            nack.put("type", "file_transfer_nack");
+            nack.put("transfer_id", transferId);
+            nack.put("chunks", new JSONArray(missing));
+            send(nack.toString());
+            print("Asking " + incoming.sender + " again for " + missing.size() + " chunk(s) of "
+                    + transfer.getFileName());
+            return;
+        }
+        try {
+            if (transfer.isComplete()) {
+                transfer.assembleFile(incoming.sha256);
+                print("File transfer complete. Saved as: " + transfer.getFileName());
+            } else {
+                print("Warning: File transfer incomplete");
             }
+        } catch (IOException e) {
+            print("Error saving file: " + e.getMessage());
+        } finally {
+            activeTransfers.remove(transferId);
         }
     }
 
 
     private void closeResources() {
+        running = false;
+        for (Thread stage : stages) {
+            stage.interrupt();
+        }
         try {
+            // Socket first: it unblocks the reader, which holds the stream lock
+            if (socket != null) socket.close();
             if (in != null) in.close();
             if (out != null) out.close();
-            if (socket != null) socket.close();
             if (consoleReader != null) consoleReader.close();
 
             // Clean up incomplete transfers
-            for (FileTransfer transfer : activeTransfers.values()) {
-                transfer.cleanup();
+            for (IncomingFile incoming : activeTransfers.values()) {
+                incoming.transfer.cleanup();
             }
             activeTransfers.clear();
         } catch (IOException e) {
@@ -237,4 +834,4 @@ public class ChatClient {
         ChatClient client = new ChatClient("localhost", 8080);
         client.start();
     }
-}
\ No newline at end of file
+}
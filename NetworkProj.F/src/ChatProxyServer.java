@@ -1,96 +1,85 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatProxyServer {
-    private ServerSocket proxySocket;
+    private static final Log LOG = Log.get("proxy");
+    private ConnectionListener listener;
     private String mainServerHost;
     private int mainServerPort;
+    private ByteRelay relay;
+    private MuxProxy muxProxy;
+    private final ExecutorService connectPool = Executors.newCachedThreadPool();
+
+    private static final Metrics.Counter CONNECT_FAILURES = Metrics.counter("proxy_connect_failures_total");
+    private static final LatencyHistogram BACKEND_CONNECT = Metrics.histogram("proxy_backend_connect_ns");
 
     public ChatProxyServer(int proxyPort, String mainHost, int mainPort) {
+        this(proxyPort, mainHost, mainPort, 0);
+    }
+
+    // upstreamConnections > 0 multiplexes all clients over that many
+    // long-lived links to the main server instead of one socket per client
+    public ChatProxyServer(int proxyPort, String mainHost, int mainPort, int upstreamConnections) {
         this.mainServerHost = mainHost;
         this.mainServerPort = mainPort;
 
         try {
-            proxySocket = new ServerSocket(proxyPort);
-            System.out.println("Proxy server started on port " + proxyPort);
+            listener = new ConnectionListener("proxy", proxyPort, SocketProfile.PROXY);
+            if (upstreamConnections > 0) {
+                muxProxy = new MuxProxy(mainHost, mainPort, upstreamConnections);
+                Metrics.gauge("proxy_mux_sessions", muxProxy::getSessionCount);
+                listener.setActiveConnections(muxProxy::getSessionCount);
+            } else {
+                relay = new ByteRelay("proxy", Runtime.getRuntime().availableProcessors());
+                Metrics.gauge("proxy_active_pairs", relay::getActivePairs);
+                listener.setActiveConnections(relay::getActivePairs);
+            }
+            Metrics.exportDefaults();
+            LOG.info("Proxy server started on port {}{}", proxyPort,
+                    muxProxy != null ? " (" + upstreamConnections + " multiplexed upstream links)" : "");
         } catch (IOException e) {
-            System.err.println("Could not start proxy server");
-            e.printStackTrace();
+            LOG.error("Could not start proxy server", e);
         }
     }
 
     public void start() {
-        while (true) {
-            try {
-                Socket clientSocket = proxySocket.accept();
-                System.out.println("New client connected to proxy");
-
-                // Connect to main server
-                Socket serverSocket = new Socket(mainServerHost, mainServerPort);
-
-                // Start two threads to handle bidirectional communication
-                new Thread(new ProxyHandler(clientSocket, serverSocket)).start();
-
-            } catch (IOException e) {
-                System.err.println("Error in proxy server");
-                e.printStackTrace();
+        listener.serve(clientChannel -> {
+            LOG.info("New client connected to proxy");
+            if (muxProxy != null) {
+                try {
+                    muxProxy.register(clientChannel);
+                } catch (IOException e) {
+                    CONNECT_FAILURES.increment();
+                    throw e;
+                }
+            } else {
+                // Dialing the main server can stall; keep it off the acceptor
+                connectPool.execute(() -> connect(clientChannel));
             }
-        }
+        });
     }
 
-    private static class ProxyHandler implements Runnable {
-        private Socket clientSocket;
-        private Socket serverSocket;
-
-        public ProxyHandler(Socket clientSocket, Socket serverSocket) {
-            this.clientSocket = clientSocket;
-            this.serverSocket = serverSocket;
-        }
-
-        @Override
-        public void run() {
-            try (
-                    BufferedReader clientIn = new BufferedReader(
-                            new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter clientOut = new PrintWriter(
-                            clientSocket.getOutputStream(), true);
-                    BufferedReader serverIn = new BufferedReader(
-                            new InputStreamReader(serverSocket.getInputStream()));
-                    PrintWriter serverOut = new PrintWriter(
-                            serverSocket.getOutputStream(), true)
-            ) {
-                // Client to server
-                new Thread(() -> {
-                    String line;
-                    try {
-                        while ((line = clientIn.readLine()) != null) {
-                            serverOut.println(line);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }).start();
+    private void connect(SocketChannel clientChannel) {
+        try {
+            // Connect to main server
+            long start = System.nanoTime();
+            SocketChannel serverChannel = SocketProfile.forEndpoint("proxy.upstream", SocketProfile.PROXY)
+                    .open(new InetSocketAddress(mainServerHost, mainServerPort));
+            BACKEND_CONNECT.recordSince(start);
 
-                // Server to client
-                String line;
-                while ((line = serverIn.readLine()) != null) {
-                    clientOut.println(line);
-                }
+            // Bytes flow both ways on the shared relay loops
+            relay.relay(clientChannel, serverChannel);
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    clientSocket.close();
-                    serverSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        } catch (IOException e) {
+            CONNECT_FAILURES.increment();
+            LOG.warn("Proxy could not reach main server: {}", e.getMessage());
+            try {
+                clientChannel.close();
+            } catch (IOException ignored) {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -1,15 +1,68 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.*;
 
 public class ChatServer {
-    private ServerSocket serverSocket;
+    private static final Log LOG = Log.get("chat");
+    private ConnectionListener listener;
     private ExecutorService threadPool;
     private volatile boolean isRunning = false;
     private Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
     private Map<String, String> nicknames = new ConcurrentHashMap<>();
+    private volatile ClusterBus clusterBus;
+    private final Set<MuxLink> muxLinks = ConcurrentHashMap.newKeySet();
+    // What the admission gate counts: detached sessions and mux streams have
+    // no socket of their own
+    private final AtomicInteger openSockets = new AtomicInteger();
+    // A mux link is trusted to speak for many clients, so only these hosts
+    // may open one: chat.mux.allow, comma-separated, localhost by default
+    private final Set<InetAddress> muxProxies = resolveAll(System.getProperty("chat.mux.allow", "localhost"));
+    private final int maxStreamsPerLink = Integer.getInteger("chat.mux.max_streams", 10_000);
+    // Links of proxies that fan broadcasts out to their own sessions
+    private final Set<MuxLink> edgeLinks = ConcurrentHashMap.newKeySet();
+    private final List<Metrics.Gauge> gauges = new ArrayList<>(); // unregistered by stop()
+    private volatile RateLimitPolicy rateLimitPolicy = RateLimitPolicy.fromSystemProperties();
+    // Liveness: ping after pingInterval of silence, drop after idleTimeout
+    private final long pingIntervalNanos = secondsProperty("chat.heartbeat.interval", 30);
+    private final long idleTimeoutNanos = secondsProperty("chat.heartbeat.timeout", 90);
+    private HashedTimingWheel timingWheel;
+    // Presence: joins and leaves go out as one delta per presenceInterval
+    private final long presenceIntervalNanos = secondsProperty("chat.presence.interval", 1);
+    private PresenceService presence;
+    // Resume: a dropped session keeps its nickname and buffers its messages
+    // for resumeGrace, waiting for the client to come back with its token
+    private final long resumeGraceNanos = secondsProperty("chat.resume.grace", 60);
+    private final int replayCapacity = Integer.getInteger("chat.resume.buffer", 1000);
+    private final Map<String, ClientHandler> detachedSessions = new ConcurrentHashMap<>();
+    private final SecureRandom tokenRandom = new SecureRandom();
+    // Drain: clients are moved off over drainSpread, transfers get until
+    // drainTimeout to finish
+    private final long drainTimeoutNanos = secondsProperty("chat.drain.timeout", 30);
+    private final long drainSpreadNanos = secondsProperty("chat.drain.spread", 10);
+    private volatile boolean draining;
+    private final FileChunkCache fileCache = openFileCache();
+    private final Map<String, FileFanOut> outgoingTransfers = new ConcurrentHashMap<>();
+    // Finished transfers whose chunks recipients may still NACK
+    private final Map<String, Retransmit> retransmits = new ConcurrentHashMap<>();
+    private final long retransmitWindowNanos = secondsProperty("chat.file.retransmit_window", 120);
+    private final AtomicInteger transfersInFlight = new AtomicInteger();
+    // Read and write buffers, lent to socket sessions only while they have
+    // data in flight
+    private final BufferPool sessionBuffers = new BufferPool("chat_session",
+            Integer.getInteger("chat.session.buffer_kb", 8) * 1024, Integer.getInteger("chat.session.idle_buffers", 256));
+    // Null unless chat.pipeline=on
+    private final InboundPipeline pipeline = "on".equalsIgnoreCase(System.getProperty("chat.pipeline"))
+            ? new InboundPipeline(Integer.getInteger("chat.pipeline.ring", 4096),
+                    Integer.getInteger("chat.pipeline.senders", 2))
+            : null;
 
     // Message types
     private static final String TYPE_FILE_TRANSFER = "file_transfer";
@@ -17,137 +70,1160 @@ public class ChatServer {
     private static final String TYPE_FILE_CHUNK = "file_chunk";
     private static final String TYPE_PROGRESS = "file_transfer_progress";
     private static final String TYPE_COMPLETE = "file_transfer_complete";
+    private static final String TYPE_NACK = "file_transfer_nack";
+    private static final int FILE_CHUNK_SIZE = 4096; // 4KB chunks
+    private static final int FANOUT_QUEUE_FRAMES = 64;
+    private static final int FANOUT_STALL_SECONDS = 30;
+    // Chunks an uploading client may have in flight; below the queue size,
+    // so relaying an upload never blocks the uploader's reader
+    private static final int UPLOAD_WINDOW = 16;
+    private static final int MAX_ENCODED_CHUNK = (FILE_CHUNK_SIZE + 2) / 3 * 4;
+    private static final int MAX_NACK_CHUNKS = 1024;
+
+    // Metrics
+    private static final Metrics.Counter MESSAGES_RECEIVED = Metrics.counter("chat_messages_received_total");
+    private static final Metrics.Counter MESSAGE_ERRORS = Metrics.counter("chat_message_errors_total");
+    private static final LatencyHistogram BROADCAST_FANOUT = Metrics.histogram("chat_broadcast_fanout_ns");
+    private static final Metrics.Counter BROADCAST_DELIVERIES = Metrics.counter("chat_broadcast_deliveries_total");
+    private static final LatencyHistogram FILE_TRANSFER_TIME = Metrics.histogram("chat_file_transfer_ns");
+    private static final Metrics.Counter FILE_BYTES_SENT = Metrics.counter("chat_file_bytes_sent_total");
+    private static final Metrics.Counter FILES_SENT = Metrics.counter("chat_files_sent_total");
+    private static final Metrics.Counter FILE_NACKS = Metrics.counter("chat_file_nacks_total");
+    private static final Metrics.Counter CHUNKS_RETRANSMITTED = Metrics.counter("chat_file_chunks_retransmitted_total");
+    private static final Metrics.Counter RATE_LIMIT_DELAYED = Metrics.counter("chat_ratelimit_delayed_total");
+    private static final Metrics.Counter RATE_LIMIT_DROPPED = Metrics.counter("chat_ratelimit_dropped_total");
+    private static final Metrics.Counter RATE_LIMIT_DISCONNECTS = Metrics.counter("chat_ratelimit_disconnects_total");
+    private static final Metrics.Counter PINGS_SENT = Metrics.counter("chat_pings_sent_total");
+    private static final Metrics.Counter SESSIONS_EXPIRED = Metrics.counter("chat_sessions_expired_total");
+    private static final Metrics.Counter SESSIONS_RESUMED = Metrics.counter("chat_sessions_resumed_total");
+    private static final Metrics.Counter REPLAY_DROPPED = Metrics.counter("chat_replay_dropped_total");
+    private static final Metrics.Counter SLOW_SESSIONS_CLOSED = Metrics.counter("chat_slow_sessions_closed_total");
+    private static final Metrics.MessageTimers PROCESS_TIME = Metrics.messageTimers("chat_process_ns_");
 
     public ChatServer(int port) {
         try {
-            serverSocket = new ServerSocket(port);
+            listener = new ConnectionListener("chat", port);
             threadPool = Executors.newCachedThreadPool();
             isRunning = true;
-            System.out.println("Chat server started on port " + port);
+            startTimingWheel();
+            startPresence();
+            registerMetrics();
+            LOG.info("Chat server started on port {}", port);
         } catch (IOException e) {
-            System.err.println("Could not start server on port " + port);
-            e.printStackTrace();
+            LOG.error("Could not start server on port {}", port, e);
         }
     }
 
     public ChatServer(int preferredPort, int maxAttempts) {
         for (int port = preferredPort; port < preferredPort + maxAttempts; port++) {
             try {
-                serverSocket = new ServerSocket(port);
+                listener = new ConnectionListener("chat", port);
                 threadPool = Executors.newCachedThreadPool();
                 isRunning = true;
-                System.out.println("Server started on port " + port);
+                startTimingWheel();
+                startPresence();
+                registerMetrics();
+                LOG.info("Server started on port {}", port);
                 return;
             } catch (IOException e) {
-                System.out.println("Port " + port + " busy, trying next...");
+                LOG.info("Port {} busy, trying next...", port);
             }
         }
-        System.err.println("Could not start server on any port");
+        LOG.error("Could not start server on any port");
+    }
+
+    private static Set<InetAddress> resolveAll(String hosts) {
+        Set<InetAddress> addresses = new HashSet<>();
+        for (String host : hosts.split(",")) {
+            if (host.isBlank()) {
+                continue;
+            }
+            try {
+                addresses.addAll(Arrays.asList(InetAddress.getAllByName(host.trim())));
+            } catch (UnknownHostException e) {
+                LOG.warn("Cannot resolve mux proxy {}: {}", host, e.getMessage());
+            }
+        }
+        return addresses;
+    }
+
+    private static long secondsProperty(String name, double defaultSeconds) {
+        double seconds = Double.parseDouble(System.getProperty(name, Double.toString(defaultSeconds)));
+        return (long) (seconds * 1_000_000_000L);
+    }
+
+    // One wheel drives the heartbeats and resume deadlines of every session
+    private void startTimingWheel() {
+        timingWheel = new HashedTimingWheel("chat-timing-wheel", 100, TimeUnit.MILLISECONDS, 512);
+        gauges.add(Metrics.gauge("chat_timers", timingWheel::getPendingCount));
+    }
+
+    private void startPresence() {
+        presence = new PresenceService(presenceIntervalNanos, TimeUnit.NANOSECONDS, timingWheel, threadPool, frame -> {
+            deliverBroadcast(frame, null);
+            ClusterBus bus = clusterBus;
+            if (bus != null) {
+                bus.publishBroadcast(frame);
+            }
+        });
+    }
+
+    private static FileChunkCache openFileCache() {
+        try {
+            return FileChunkCache.fromSystemProperties(FILE_CHUNK_SIZE);
+        } catch (IOException e) {
+            LOG.warn("File cache disabled: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    // Null when the file is not cacheable and has to be streamed
+    private FileChunkCache.Entry cachedChunks(File file) {
+        if (fileCache == null) {
+            return null;
+        }
+        try {
+            return fileCache.get(file);
+        } catch (IOException e) {
+            LOG.warn("Could not cache {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private static String chunkFrame(String transferId, int index, byte[] data, int length) {
+        JSONObject chunk = new JSONObject();
+        chunk.put("type", TYPE_FILE_CHUNK);
+        chunk.put("transfer_id", transferId);
+        chunk.put("chunk_index", index);
+        chunk.put("crc32c", FileTransfer.checksum(data, length));
+        chunk.put("chunk_data", Base64.getEncoder().encodeToString(
+                length == data.length ? data : Arrays.copyOf(data, length)));
+        return chunk.toString();
+    }
+
+    // Ends a transfer for a recipient; sha256 lets it check the whole file
+    private static String completionFrame(String transferId, String status, String sha256) {
+        JSONObject completion = new JSONObject();
+        completion.put("type", TYPE_COMPLETE);
+        completion.put("transfer_id", transferId);
+        completion.put("status", status);
+        if (sha256 != null) {
+            completion.put("sha256", sha256);
+        }
+        return completion.toString();
+    }
+
+    private void keepForRetransmit(Retransmit source) {
+        retransmits.put(source.transferId, source);
+        timingWheel.schedule(() -> retransmits.remove(source.transferId, source),
+                retransmitWindowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private String newResumeToken() {
+        byte[] bytes = new byte[18];
+        tokenRandom.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private void registerMetrics() {
+        gauges.add(Metrics.gauge("chat_clients", clients::size));
+        gauges.add(Metrics.gauge("chat_nicknames", nicknames::size));
+        gauges.add(Metrics.gauge("chat_mux_links", muxLinks::size));
+        gauges.add(Metrics.gauge("chat_sessions_detached", detachedSessions::size));
+        gauges.add(Metrics.gauge("chat_transfers_in_flight", transfersInFlight::get));
+        gauges.add(Metrics.gauge("chat_draining", () -> draining ? 1 : 0));
+        gauges.add(Metrics.gauge("chat_pool_active_threads", ((ThreadPoolExecutor) threadPool)::getActiveCount));
+        listener.setActiveConnections(openSockets::get);
+        Metrics.exportDefaults();
+    }
+
+    // Applies to connections accepted from now on; null turns limiting off
+    public void setRateLimitPolicy(RateLimitPolicy policy) {
+        this.rateLimitPolicy = policy;
+    }
+
+    public int getPort() {
+        return listener != null ? listener.getPort() : -1;
+    }
+
+    // Federates this node with other ChatServer nodes so broadcasts, private
+    // messages and nickname lookups span the whole cluster
+    public void joinCluster(String advertisedHost, int busPort, List<InetSocketAddress> peers)
+            throws IOException {
+        ClusterBus bus = new ClusterBus(advertisedHost, busPort, peers, new ClusterBus.Listener() {
+            @Override
+            public void onRemoteBroadcast(String frame) {
+                deliverBroadcast(frame, null);
+            }
+
+            @Override
+            public void onRemotePrivate(String recipient, String frame) {
+                ClientHandler handler = findLocalClient(recipient);
+                if (handler != null) {
+                    handler.deliver(frame);
+                }
+            }
+
+            @Override
+            public Collection<String> localNicknames() {
+                return new ArrayList<>(nicknames.values());
+            }
+        });
+        clusterBus = bus;
+    }
+
+    private ClientHandler findLocalClient(String nickname) {
+        for (Map.Entry<String, String> entry : nicknames.entrySet()) {
+            if (entry.getValue().equals(nickname)) {
+                return clients.get(entry.getKey());
+            }
+        }
+        return null;
+    }
+
+    private void deliverBroadcast(String jsonMessage, ClientHandler exclude) {
+        long start = System.nanoTime();
+        int deliveries = 0;
+        for (ClientHandler handler : clients.values()) {
+            if (handler == exclude) {
+                continue;
+            }
+            if (!handler.isEdgeFanout()) {
+                handler.deliver(jsonMessage);
+                deliveries++;
+            } else if (handler.detached) {
+                // Its proxy lost it; keep the frame for when it resumes
+                handler.bufferBroadcast(jsonMessage);
+            }
+        }
+
+        // One frame per edge link, delivered to the sessions on that link, so
+        // it stays in order with their own frames
+        for (MuxLink link : edgeLinks) {
+            int excludeStream = exclude != null && exclude.link == link ? exclude.streamId : 0;
+            link.send(MuxProtocol.broadcast(excludeStream, jsonMessage));
+            deliveries++;
+        }
+        BROADCAST_DELIVERIES.add(deliveries);
+        BROADCAST_FANOUT.recordSince(start);
+    }
+
+    // In-process sessions without a socket, used by the benchmarks and by
+    // embedders; returns the session id for process()
+    String attachSession(String nickname, Writer sink) {
+        ClientHandler handler = new ClientHandler("local#" + UUID.randomUUID(), new PrintWriter(sink, true));
+        clients.put(handler.getClientId(), handler);
+        if (nickname != null) {
+            handler.nickname = nickname;
+            nicknames.put(handler.getClientId(), nickname);
+        }
+        return handler.getClientId();
+    }
+
+    void process(String sessionId, String line) {
+        ClientHandler handler = clients.get(sessionId);
+        if (handler != null) {
+            handler.processMessage(line);
+        }
+    }
+
+    void broadcast(String jsonMessage) {
+        deliverBroadcast(jsonMessage, null);
+    }
+
+    boolean hasClient(String nickname) {
+        return findLocalClient(nickname) != null;
     }
 
     public boolean isRunning() {
-        return isRunning && serverSocket != null && !serverSocket.isClosed();
+        return isRunning && listener != null && listener.isOpen();
     }
 
     public void start() {
         if (!isRunning()) {
-            System.err.println("Server cannot start - socket not initialized");
+            LOG.error("Server cannot start - socket not initialized");
             return;
         }
 
-        System.out.println("Waiting for client connections...");
-        while (isRunning()) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
+        LOG.info("Waiting for client connections...");
+        listener.serve(channel -> {
+            Socket clientSocket = channel.socket();
+            LOG.info("New client connected: {}", clientSocket.getInetAddress());
 
-                ClientHandler handler = new ClientHandler(clientSocket);
-                clients.put(handler.getClientId(), handler);
+            ClientHandler handler = new ClientHandler(clientSocket);
+            clients.put(handler.getClientId(), handler);
+            openSockets.incrementAndGet();
+            try {
                 threadPool.execute(handler);
+            } catch (RejectedExecutionException e) {
+                clients.remove(handler.getClientId());
+                openSockets.decrementAndGet();
+                throw e;
+            }
+        });
+    }
 
-            } catch (SocketException e) {
-                if (isRunning()) {
-                    System.err.println("Server socket closed");
-                }
-            } catch (IOException e) {
-                if (isRunning()) {
-                    System.err.println("Error accepting client connection: " + e.getMessage());
+    public boolean drain() {
+        return drain(drainTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Takes the node out of service without a reconnect storm: stops
+    // accepting, then tells each client to migrate and closes it at a random
+    // point within the spread, so they reach the other nodes gradually.
+    // Clients in a file transfer are moved once it completes. Returns true if
+    // every session left before the deadline; call stop() afterwards anyway.
+    public boolean drain(long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        long spread = Math.max(1, Math.min(drainSpreadNanos, unit.toNanos(timeout) / 2));
+        draining = true;
+        if (listener != null) {
+            listener.close();
+        }
+        // Nobody is coming back to this node
+        for (ClientHandler handler : detachedSessions.values()) {
+            if (detachedSessions.remove(handler.resumeToken, handler)) {
+                handler.resumeDeadline.cancel();
+                handler.leave();
+            }
+        }
+        LOG.info("Draining: {} sessions, {} transfers in flight", clients.size(), transfersInFlight.get());
+
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        while (true) {
+            for (ClientHandler handler : clients.values()) {
+                if (!handler.migrating && handler.transfers.get() == 0) {
+                    handler.migrate(ThreadLocalRandom.current().nextLong(spread));
                 }
             }
+            long now = System.nanoTime();
+            if (clients.isEmpty()) {
+                LOG.info("Drained in {} ms", TimeUnit.NANOSECONDS.toMillis(now - start));
+                return true;
+            }
+            if (now - deadline >= 0) {
+                LOG.warn("Drain deadline reached with {} sessions and {} transfers remaining",
+                        clients.size(), transfersInFlight.get());
+                return false;
+            }
+            if (now - nextReport >= 0) {
+                LOG.info("Draining: {} sessions, {} transfers in flight, {}s left", clients.size(),
+                        transfersInFlight.get(), TimeUnit.NANOSECONDS.toSeconds(deadline - now));
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
         }
     }
 
     public void stop() {
         isRunning = false;
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            System.err.println("Error closing server socket: " + e.getMessage());
+        if (listener != null) {
+            listener.close();
         }
 
         if (threadPool != null) {
             threadPool.shutdownNow();
         }
 
+        if (clusterBus != null) {
+            clusterBus.close();
+        }
+        for (Metrics.Gauge gauge : gauges) {
+            gauge.unregister();
+        }
+
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
+        if (fileCache != null) {
+            fileCache.close();
+        }
+        if (presence != null) {
+            presence.close();
+        }
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        sessionBuffers.close();
+
         // Disconnect all clients
         for (ClientHandler handler : clients.values()) {
             handler.cleanup();
         }
+        for (MuxLink link : muxLinks) {
+            link.close();
+        }
         clients.clear();
         nicknames.clear();
 
-        System.out.println("Server stopped");
+        LOG.info("Server stopped");
     }
 
+    // A proxy connection carrying many client sessions (see MuxProtocol).
+    // Each stream becomes a logical ClientHandler without a socket of its own.
+    private class MuxLink {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final String linkId;
+        private final boolean edgeFanout;
+        private final Map<Integer, ClientHandler> sessions = new ConcurrentHashMap<>();
+
+        MuxLink(Socket socket, PrintWriter out, String linkId, JSONObject hello) {
+            this.socket = socket;
+            this.out = out;
+            this.linkId = linkId;
+            this.edgeFanout = hello.optBoolean("edge_fanout", false);
+        }
+
+        void serve(SessionStream in) throws IOException {
+            muxLinks.add(this);
+            if (edgeFanout) {
+                edgeLinks.add(this);
+            }
+            LOG.info("Multiplexed proxy link established: {}{}", linkId,
+                    edgeFanout ? " (edge fan-out)" : "");
+            try {
+                String frame;
+                while ((frame = in.readLine()) != null && isRunning) {
+                    dispatch(frame);
+                }
+            } finally {
+                muxLinks.remove(this);
+                edgeLinks.remove(this);
+                for (ClientHandler session : sessions.values()) {
+                    session.cleanup();
+                }
+                sessions.clear();
+            }
+        }
+
+        private void dispatch(String frame) {
+            int streamId;
+            try {
+                streamId = MuxProtocol.streamId(frame);
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                LOG.warn("Bad mux frame from {}: {}", linkId, frame);
+                return;
+            }
+
+            switch (MuxProtocol.opcode(frame)) {
+                case MuxProtocol.OPEN:
+                    if (draining) {
+                        send(MuxProtocol.close(streamId));
+                        break;
+                    }
+                    if (sessions.containsKey(streamId)) {
+                        // The session using it must not be replaced unseen
+                        LOG.warn("Mux link {} opened stream {} twice", linkId, streamId);
+                        break;
+                    }
+                    if (sessions.size() >= maxStreamsPerLink || !admitsStream()) {
+                        send(MuxProtocol.close(streamId));
+                        break;
+                    }
+                    ClientHandler session = new ClientHandler(this, streamId);
+                    sessions.put(streamId, session);
+                    clients.put(session.getClientId(), session);
+                    session.startHeartbeat();
+                    break;
+                case MuxProtocol.DATA:
+                    ClientHandler target = sessions.get(streamId);
+                    if (target != null) {
+                        target.processMessage(MuxProtocol.payload(frame));
+                    }
+                    break;
+                case MuxProtocol.CLOSE:
+                    ClientHandler closed = sessions.remove(streamId);
+                    if (closed != null) {
+                        closed.cleanup();
+                    }
+                    break;
+                default:
+                    LOG.warn("Unknown mux opcode from {}: {}", linkId, frame);
+            }
+        }
+
+        // Streams pass the same admission limit as sockets
+        private boolean admitsStream() {
+            int max = listener.getMaxConnections();
+            if (max <= 0) {
+                return true;
+            }
+            int streams = 0;
+            for (MuxLink link : muxLinks) {
+                streams += link.sessions.size();
+            }
+            return openSockets.get() + streams < max;
+        }
+
+        void send(String frame) {
+            synchronized (out) {
+                out.println(frame);
+            }
+        }
+
+        // Server-initiated close of one stream
+        void endStream(int streamId) {
+            if (sessions.remove(streamId) != null) {
+                send(MuxProtocol.close(streamId));
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing mux link {}", linkId);
+            }
+        }
+    }
+
+    // What a finished transfer needs to resend the chunks a recipient NACKs,
+    // kept for chat.file.retransmit_window. A file on the server is read
+    // again, from the cache if it still holds the same content; an upload is
+    // asked of the uploader, who still has the file.
+    private static final class Retransmit {
+        final String transferId;
+        final ClientHandler uploader; // null for a file on the server
+        final File file;
+        final long lastModified;
+        final long fileSize;
+        final long chunkCount;
+        final String sha256;
+        final Set<String> recipients;
+
+        Retransmit(String transferId, ClientHandler uploader, File file, long lastModified, long fileSize,
+                String sha256, Set<String> recipients) {
+            this.transferId = transferId;
+            this.uploader = uploader;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.fileSize = fileSize;
+            this.chunkCount = (fileSize + FILE_CHUNK_SIZE - 1) / FILE_CHUNK_SIZE;
+            this.sha256 = sha256;
+            this.recipients = recipients;
+        }
+    }
+
+    // One outgoing file and everyone receiving it. Frames are queued to each
+    // recipient and written by a task of its own on the pool, so recipients
+    // progress independently: a slow one holds the sender back only once its
+    // queue is full, and is dropped when it stays full. Recipients that
+    // decline are skipped from then on.
+    //
+    // For client uploads the sender works on credit instead: it may have
+    // `window` chunks outstanding and gets credit back as the slowest active
+    // recipient takes them, so the server holds at most a window per upload
+    // and a slow recipient slows the uploader itself.
+    private class FileFanOut {
+        private final String transferId;
+        private final ClientHandler sender;
+        private final long fileSize;
+        private final long chunkCount;
+        private final List<Delivery> deliveries = new CopyOnWriteArrayList<>();
+        private int window;
+        private long credited;   // guarded by this
+        private long received;   // uploaded chunks, sender's reader thread only
+        private boolean cancelled; // guarded by this
+
+        private class Delivery implements Runnable {
+            private final ClientHandler recipient;
+            private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(FANOUT_QUEUE_FRAMES);
+            private final CountDownLatch done = new CountDownLatch(1);
+            private volatile String outcome; // null while still delivering
+            private volatile boolean complete;
+            private volatile long chunksSent;
+            private boolean delivered;
+            private int lastProgress = -1;
+
+            Delivery(ClientHandler recipient) {
+                this.recipient = recipient;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        String frame = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (frame == null) {
+                            if (complete || !isActive()) {
+                                if (outcome == null) {
+                                    outcome = delivered ? "delivered" : "disconnected";
+                                }
+                                return;
+                            }
+                        } else if (outcome == null) {
+                            // The pipeline queues without waiting for room
+                            recipient.outbox.awaitBulkSpace();
+                            recipient.sendMessage(frame, PriorityOutbox.Lane.BULK);
+                            reportProgress();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    recipient.transfers.decrementAndGet();
+                    done.countDown();
+                    if (window > 0) {
+                        chunkDelivered(); // may have been the last recipient
+                    }
+                }
+            }
+
+            private void reportProgress() {
+                if (chunksSent == chunkCount) {
+                    delivered = true; // that was the completion frame
+                    return;
+                }
+                chunksSent++;
+                if (window > 0) {
+                    chunkDelivered();
+                }
+                int progress = (int) (chunksSent * 100 / chunkCount);
+                if (progress != lastProgress) {
+                    lastProgress = progress;
+                    JSONObject message = new JSONObject();
+                    message.put("type", TYPE_PROGRESS);
+                    message.put("transfer_id", transferId);
+                    message.put("recipient", recipient.nickname);
+                    message.put("progress", progress);
+                    sender.deliver(message.toString(), PriorityOutbox.Lane.BULK);
+                }
+            }
+
+            boolean isActive() {
+                return outcome == null && !recipient.cleanedUp.get();
+            }
+        }
+
+        FileFanOut(String transferId, ClientHandler sender, long fileSize) {
+            this.transferId = transferId;
+            this.sender = sender;
+            this.fileSize = fileSize;
+            this.chunkCount = (fileSize + FILE_CHUNK_SIZE - 1) / FILE_CHUNK_SIZE;
+            transfersInFlight.incrementAndGet();
+            sender.transfers.incrementAndGet();
+        }
+
+        void add(ClientHandler recipient) {
+            Delivery delivery = new Delivery(recipient);
+            deliveries.add(delivery);
+            recipient.transfers.incrementAndGet();
+            threadPool.execute(delivery);
+        }
+
+        boolean isActive() {
+            for (Delivery delivery : deliveries) {
+                if (delivery.isActive()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Set<String> recipientNames() {
+            Set<String> names = new HashSet<>();
+            for (Delivery delivery : deliveries) {
+                names.add(delivery.recipient.nickname);
+            }
+            return names;
+        }
+
+        void publish(String frame, long chunkBytes) throws InterruptedException {
+            for (Delivery delivery : deliveries) {
+                if (!delivery.isActive()) {
+                    continue;
+                }
+                if (delivery.queue.offer(frame, FANOUT_STALL_SECONDS, TimeUnit.SECONDS)) {
+                    FILE_BYTES_SENT.add(chunkBytes);
+                } else {
+                    delivery.outcome = "dropped";
+                    sender.sendError(delivery.recipient.nickname + " is not keeping up, dropped from the transfer");
+                }
+            }
+        }
+
+        void decline(ClientHandler recipient) {
+            for (Delivery delivery : deliveries) {
+                if (delivery.recipient == recipient && !delivery.complete && delivery.outcome == null) {
+                    delivery.outcome = "declined";
+                }
+            }
+            if (window > 0) {
+                chunkDelivered();
+            }
+        }
+
+        // Uploads: hands credit back to the sender as far as every active
+        // recipient has got, and cancels the upload once nobody is left
+        private synchronized void chunkDelivered() {
+            if (cancelled || !sender.uploads().containsKey(transferId)) {
+                return; // finished or already cancelled
+            }
+            long slowest = Long.MAX_VALUE;
+            for (Delivery delivery : deliveries) {
+                if (delivery.isActive()) {
+                    slowest = Math.min(slowest, delivery.chunksSent);
+                }
+            }
+            if (slowest == Long.MAX_VALUE) {
+                cancelled = true;
+                sender.cancelUpload(transferId, "no recipient is taking the file any more");
+            } else if (slowest > credited) {
+                JSONObject credit = new JSONObject();
+                credit.put("type", "file_upload_credit");
+                credit.put("transfer_id", transferId);
+                credit.put("credits", slowest - credited);
+                credited = slowest;
+                sender.deliver(credit.toString(), PriorityOutbox.Lane.CONTROL);
+            }
+        }
+
+        // Uploads: takes the next chunk off the sender; false if it broke
+        // the protocol (out of order, or beyond its credit)
+        synchronized boolean acceptChunk(long chunkIndex) {
+            if (chunkIndex != received || chunkIndex >= chunkCount || chunkIndex >= credited + window) {
+                return false;
+            }
+            received++;
+            return true;
+        }
+
+        boolean isFullyReceived() {
+            return received == chunkCount;
+        }
+
+        // Completes every delivery still running and reports the outcomes
+        void finish(String sha256) throws InterruptedException {
+            publish(completionFrame(transferId, "success", sha256), 0);
+            for (Delivery delivery : deliveries) {
+                delivery.complete = true;
+            }
+
+            JSONObject outcomes = new JSONObject();
+            boolean allDelivered = true;
+            try {
+                for (Delivery delivery : deliveries) {
+                    delivery.done.await();
+                    String outcome = delivery.outcome != null ? delivery.outcome : "failed";
+                    allDelivered &= outcome.equals("delivered");
+                    outcomes.put(delivery.recipient.nickname, outcome);
+                }
+            } finally {
+                release();
+            }
+
+            JSONObject summary = new JSONObject();
+            summary.put("type", TYPE_COMPLETE);
+            summary.put("transfer_id", transferId);
+            summary.put("status", allDelivered ? "success" : "partial");
+            summary.put("recipients", outcomes);
+            sender.sendMessage(summary.toString(), PriorityOutbox.Lane.BULK);
+        }
+
+        // Recipients still taking the file are told it failed
+        void abort() {
+            String frame = completionFrame(transferId, "failed", null);
+            for (Delivery delivery : deliveries) {
+                if (delivery.isActive()) {
+                    delivery.queue.offer(frame);
+                }
+                delivery.complete = true;
+            }
+            release();
+        }
+
+        private void release() {
+            sender.transfers.decrementAndGet();
+            transfersInFlight.decrementAndGet();
+        }
+    }
+
+    // Staged dispatch: readers only publish lines, and decoding and routing
+    // each run on a ring stage of their own, so one expensive step no longer
+    // holds up reading or the other. A session's messages pass every stage
+    // in order. Outbound frames go straight onto their session's outbox and
+    // the send stages, spread by session, start one write per session per
+    // batch. Socket writes block, so they run on the thread pool: a peer that
+    // stops reading holds one pool thread until its outbox overflows and the
+    // session is closed, and neither routing nor a send stage ever waits on
+    // a connection.
+    private class InboundPipeline {
+        private final RingStage<Inbound> decode;
+        private final RingStage<Inbound> route;
+        private final List<RingStage<ClientHandler>> send = new ArrayList<>();
+
+        InboundPipeline(int capacity, int senders) {
+            route = new RingStage<>("route", capacity, (event, endOfBatch) ->
+                    event.handler.dispatch(event.json, event.receivedAt));
+            decode = new RingStage<>("decode", capacity, this::decode);
+            for (int i = 0; i < Math.max(1, senders); i++) {
+                send.add(new RingStage<>("send_" + i, capacity, new Sender()));
+            }
+        }
+
+        void receive(ClientHandler handler, String line, long receivedAt) {
+            decode.publish(new Inbound(handler, line, receivedAt));
+        }
+
+        void send(ClientHandler handler, String frame, PriorityOutbox.Lane lane) {
+            ClientHandler target = handler.write(frame, lane);
+            if (target == null) {
+                return;
+            }
+            // A full send ring only costs the batching
+            if (!send.get(Math.floorMod(target.hashCode(), send.size())).tryPublish(target)) {
+                target.outbox.drainLater();
+            }
+        }
+
+        private void decode(Inbound event, boolean endOfBatch) {
+            try {
+                event.json = new JSONObject(event.line);
+            } catch (JSONException e) {
+                MESSAGE_ERRORS.increment();
+                event.handler.sendError("Invalid message format: " + e.getMessage());
+                return;
+            }
+            route.publish(event);
+        }
+
+        void stop() {
+            decode.stop();
+            route.stop();
+            for (RingStage<ClientHandler> stage : send) {
+                stage.stop();
+            }
+        }
+    }
+
+    private static final class Inbound {
+        final ClientHandler handler;
+        final String line;
+        final long receivedAt;
+        JSONObject json;
+
+        Inbound(ClientHandler handler, String line, long receivedAt) {
+            this.handler = handler;
+            this.line = line;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    // Starts each session's write once at the end of the batch, however many
+    // frames it got meanwhile; the outbox writes them in priority order
+    private static final class Sender implements RingStage.Handler<ClientHandler> {
+        private final Set<ClientHandler> written = new HashSet<>();
+
+        @Override
+        public void onEvent(ClientHandler handler, boolean endOfBatch) {
+            written.add(handler);
+            if (endOfBatch) {
+                for (ClientHandler session : written) {
+                    session.outbox.drainLater();
+                }
+                written.clear();
+            }
+        }
+    }
+
+    // Kept small, as a node may hold a great many mostly idle sessions: a
+    // socket session has a SessionStream that borrows buffers only while
+    // data is in flight, and the file transfer maps exist once used.
     private class ClientHandler implements Runnable {
         private final Socket clientSocket;
-        private BufferedReader in;
-        private PrintWriter out;
+        private final SessionStream stream; // socket sessions
+        private final PrintWriter out;      // in-process sessions
         private final String clientId;
         private String nickname;
-        private final Map<String, FileTransfer> activeTransfers = new ConcurrentHashMap<>();
+        // Incoming files, and the files this client is uploading, by
+        // transfer id; null until the first
+        private volatile Map<String, FileTransfer> activeTransfers;
+        private volatile Map<String, FileFanOut> uploads;
+        private final MuxLink link;
+        private final int streamId;
+        private final RateLimitPolicy.Limiter limiter;
+        private boolean overLimit;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile boolean pingOutstanding;
+        private volatile HashedTimingWheel.Timeout heartbeat;
+        private final AtomicBoolean cleanedUp = new AtomicBoolean();
+        private volatile boolean quit;
+        private String resumeToken;
+        // While detached, messages for this session land in replay; once a
+        // new connection resumes it they are forwarded there instead
+        private volatile boolean detached;
+        private ArrayDeque<String> replay;
+        private int replayDropped;
+        private ClientHandler resumedBy;
+        private HashedTimingWheel.Timeout resumeDeadline;
+        // File transfers this session sends or receives; drain waits for them
+        private final AtomicInteger transfers = new AtomicInteger();
+        private volatile boolean migrating;
+        private final PriorityOutbox outbox = new PriorityOutbox(new PriorityOutbox.Sink() {
+            @Override
+            public void write(String frame) {
+                if (link != null) {
+                    link.send(MuxProtocol.data(streamId, frame));
+                } else if (stream != null) {
+                    try {
+                        stream.write(frame);
+                    } catch (IOException e) {
+                        // The reader sees the connection fail and cleans up
+                    }
+                } else {
+                    out.write(frame);
+                    out.write(System.lineSeparator());
+                }
+            }
+
+            @Override
+            public void flush() {
+                if (stream != null) {
+                    try {
+                        stream.flush();
+                    } catch (IOException e) {
+                        // As above
+                    }
+                } else if (out != null) {
+                    out.flush();
+                }
+            }
+        }, threadPool);
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket) throws IOException {
             this.clientSocket = socket;
+            this.stream = new SessionStream(socket, sessionBuffers);
+            this.out = null;
             this.clientId = socket.getInetAddress() + ":" + socket.getPort();
+            this.link = null;
+            this.streamId = 0;
+            // With the pipeline the limiter runs on the shared route stage
+            this.limiter = newLimiter(pipeline == null);
+        }
+
+        // In-process session writing straight to the given sink; embedders
+        // are trusted, so it is not rate limited
+        ClientHandler(String clientId, PrintWriter out) {
+            this.clientSocket = null;
+            this.stream = null;
+            this.clientId = clientId;
+            this.out = out;
+            this.link = null;
+            this.streamId = 0;
+            this.limiter = null;
+        }
+
+        // Logical session carried on a multiplexed proxy link
+        ClientHandler(MuxLink link, int streamId) {
+            this.clientSocket = null;
+            this.stream = null;
+            this.out = null;
+            this.clientId = link.linkId + "#" + streamId;
+            this.link = link;
+            this.streamId = streamId;
+            this.limiter = newLimiter(false);
+        }
+
+        private RateLimitPolicy.Limiter newLimiter(boolean mayDelay) {
+            RateLimitPolicy policy = rateLimitPolicy;
+            return policy != null ? policy.newLimiter(mayDelay) : null;
         }
 
         public String getClientId() {
             return clientId;
         }
 
+        private Map<String, FileTransfer> activeTransfers() {
+            Map<String, FileTransfer> transfers = activeTransfers;
+            return transfers != null ? transfers : Collections.emptyMap();
+        }
+
+        private Map<String, FileFanOut> uploads() {
+            Map<String, FileFanOut> map = uploads;
+            return map != null ? map : Collections.emptyMap();
+        }
+
+        private synchronized void addIncomingTransfer(String transferId, FileTransfer transfer) {
+            if (activeTransfers == null) {
+                activeTransfers = new ConcurrentHashMap<>();
+            }
+            activeTransfers.put(transferId, transfer);
+        }
+
+        private synchronized void addUpload(String transferId, FileFanOut fanOut) {
+            if (uploads == null) {
+                uploads = new ConcurrentHashMap<>();
+            }
+            uploads.put(transferId, fanOut);
+        }
+
         public String getNickname() {
             return nickname != null ? nickname : "unknown";
         }
 
+        // Broadcasts for this session are fanned out by its proxy
+        boolean isEdgeFanout() {
+            return link != null && link.edgeFanout;
+        }
+
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
+                startHeartbeat(); // also catches connections that never send a line
+
+                String inputLine = stream.readLine();
+                JSONObject hello = inputLine != null ? muxHello(inputLine) : null;
+                if (hello != null) {
+                    if (!muxProxies.contains(clientSocket.getInetAddress())) {
+                        LOG.warn("Refused mux link from {}, not in chat.mux.allow", clientSocket.getInetAddress());
+                        return;
+                    }
+                    // A proxy, not a user: serve its sessions on this thread
+                    clients.remove(clientId);
+                    stopHeartbeat();
+                    PrintWriter linkOut = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                            clientSocket.getOutputStream(), StandardCharsets.UTF_8)), true);
+                    new MuxLink(clientSocket, linkOut, clientId, hello).serve(stream);
+                    return;
+                }
 
-                String inputLine;
-                while ((inputLine = in.readLine()) != null && isRunning()) {
+                // A rate-limit disconnect closes the socket under the reader
+                while (inputLine != null && isRunning && !clientSocket.isClosed()) {
                     processMessage(inputLine);
+                    inputLine = stream.readLine();
                 }
             } catch (IOException e) {
-                System.err.println("Error with client " + clientId + ": " + e.getMessage());
+                if (!clientSocket.isClosed()) { // not a disconnect we made ourselves
+                    LOG.warn("Error with client {}: {}", clientId, e.getMessage());
+                }
             } finally {
-                cleanup();
+                cleanup(); // closes the socket, or it is closed already
+                openSockets.decrementAndGet();
+            }
+        }
+
+        void startHeartbeat() {
+            HashedTimingWheel wheel = timingWheel;
+            if (wheel != null && pingIntervalNanos > 0 && idleTimeoutNanos > 0) {
+                heartbeat = wheel.schedule(this::checkLiveness, pingIntervalNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void stopHeartbeat() {
+            HashedTimingWheel.Timeout timeout = heartbeat;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        // Runs on the wheel thread once per interval per session, so reading
+        // a message costs only the lastActivity write. Sends and disconnects
+        // can block on a dead peer and go to the pool.
+        private void checkLiveness() {
+            if (detached || !clients.containsKey(clientId)) {
+                return;
+            }
+            long idle = System.nanoTime() - lastActivity;
+            if (idle >= idleTimeoutNanos) {
+                SESSIONS_EXPIRED.increment();
+                LOG.info("Client {} timed out after {} ms", clientId, idle / 1_000_000);
+                threadPool.execute(this::disconnect);
+                return;
+            }
+
+            long nextCheck;
+            if (idle >= pingIntervalNanos && !pingOutstanding) {
+                pingOutstanding = true;
+                PINGS_SENT.increment();
+                threadPool.execute(this::sendPing);
+                nextCheck = idleTimeoutNanos - idle;
+            } else if (pingOutstanding) {
+                nextCheck = idleTimeoutNanos - idle;
+            } else {
+                nextCheck = pingIntervalNanos - idle;
+            }
+            heartbeat = timingWheel.schedule(this::checkLiveness, nextCheck, TimeUnit.NANOSECONDS);
+        }
+
+        private void sendPing() {
+            JSONObject ping = new JSONObject();
+            ping.put("type", "ping");
+            ping.put("timestamp", System.currentTimeMillis());
+            sendMessage(ping.toString(), PriorityOutbox.Lane.CONTROL);
+        }
+
+        private JSONObject muxHello(String line) {
+            try {
+                JSONObject json = new JSONObject(line);
+                return MuxProtocol.TYPE_HELLO.equals(json.optString("type", "")) ? json : null;
+            } catch (JSONException e) {
+                return null;
             }
         }
 
         private void processMessage(String message) {
+            long start = System.nanoTime();
+            MESSAGES_RECEIVED.increment();
+            lastActivity = start;
+            pingOutstanding = false;
+            if (pipeline != null) {
+                pipeline.receive(this, message, start);
+                return;
+            }
+
+            JSONObject json;
+            try {
+                json = new JSONObject(message);
+            } catch (JSONException e) {
+                MESSAGE_ERRORS.increment();
+                sendError("Invalid message format: " + e.getMessage());
+                PROCESS_TIME.get("").recordSince(start);
+                return;
+            }
+            dispatch(json, start);
+        }
+
+        // start is when the line was read, so with the pipeline the timer
+        // includes the time spent queued
+        private void dispatch(JSONObject json, long start) {
+            String type = "";
             try {
-                JSONObject json = new JSONObject(message);
-                String type = json.optString("type", "");
+                type = json.optString("type", "");
+                // Upload chunks are already bounded by the credit window, and
+                // dropping one would cancel the whole upload as out of order
+                boolean creditPaced = type.equals("file_upload_chunk") && !json.has("recipient");
+                if (!creditPaced && !withinRateLimit(type)) {
+                    return;
+                }
 
                 switch (type) {
+                    case "resume":
+                        handleResume(json);
+                        break;
+                    case "quit":
+                        quit = true; // a real leave, not a dropped connection
+                        disconnect();
+                        break;
+                    case "pong":
+                        break; // lastActivity is all it needs to update
+                    case "ping":
+                        JSONObject pong = new JSONObject();
+                        pong.put("type", "pong");
+                        pong.put("timestamp", System.currentTimeMillis());
+                        sendMessage(pong.toString(), PriorityOutbox.Lane.CONTROL);
+                        break;
                     case "set_nickname":
                         handleSetNickname(json);
                         break;
+                    case "get_roster":
+                        handleGetRoster();
+                        break;
                     case "public_message":
                         handlePublicMessage(json);
                         break;
@@ -155,7 +1231,15 @@ public class ChatServer {
                         handlePrivateMessage(json);
                         break;
                     case TYPE_FILE_TRANSFER:
-                        handleFileTransfer(json);
+                        // Streaming a file must not stall the sender's own chat,
+                        // the other sessions on a link or the route stage
+                        threadPool.execute(() -> {
+                            try {
+                                handleFileTransfer(json);
+                            } catch (JSONException e) {
+                                sendError("Invalid message format: " + e.getMessage());
+                            }
+                        });
                         break;
                     case TYPE_FILE_INFO:
                         handleFileTransferInfo(json);
@@ -166,98 +1250,463 @@ public class ChatServer {
                     case "file_transfer_response":
                         handleFileTransferResponse(json);
                         break;
+                    case "file_upload_start":
+                        handleUploadStart(json);
+                        break;
+                    case "file_upload_chunk":
+                        handleUploadChunk(json);
+                        break;
+                    case "file_upload_end":
+                        handleUploadEnd(json);
+                        break;
+                    case TYPE_NACK:
+                        handleFileNack(json);
+                        break;
                     default:
                         sendError("Unknown message type: " + type);
                 }
             } catch (JSONException e) {
+                MESSAGE_ERRORS.increment();
                 sendError("Invalid message format: " + e.getMessage());
             } catch (Exception e) {
+                MESSAGE_ERRORS.increment();
                 sendError("Error processing message: " + e.getMessage());
+            } finally {
+                PROCESS_TIME.get(type).recordSince(start);
+            }
+        }
+
+        private boolean withinRateLimit(String type) {
+            if (limiter == null) {
+                return true;
+            }
+            long wait = limiter.acquire(RateLimitPolicy.classify(type));
+            if (wait == 0) {
+                overLimit = false;
+                return true;
+            }
+
+            switch (limiter.getAction()) {
+                case DELAY:
+                    // Not reading meanwhile pushes back on the client through TCP
+                    RATE_LIMIT_DELAYED.increment();
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                        return true;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                case DISCONNECT:
+                    RATE_LIMIT_DISCONNECTS.increment();
+                    sendError("Rate limit exceeded, disconnecting");
+                    quit = true; // not resumable
+                    disconnect();
+                    return false;
+                default:
+                    RATE_LIMIT_DROPPED.increment();
+                    if (!overLimit) {
+                        overLimit = true;
+                        sendError("Rate limit exceeded, messages are being dropped");
+                    }
+                    return false;
             }
         }
 
+        // A socket client is cleaned up by run() once its reader sees the close
+        private void disconnect() {
+            if (clientSocket == null) {
+                cleanup();
+                return;
+            }
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                LOG.warn("Error disconnecting client {}", clientId);
+            }
+        }
+
+        // The target is "recipient" (one nickname, or "*" for everyone else on
+        // this server) or a "recipients" list; the file is read once for all
         private void handleFileTransfer(JSONObject message) throws JSONException {
             if (nickname == null) {
                 sendError("You must set a nickname first");
                 return;
             }
 
-            String recipient = message.getString("recipient");
             String filePath = message.getString("file_path");
-
             File file = new File(filePath);
             if (!file.exists()) {
                 sendError("File not found");
                 return;
             }
 
+            List<ClientHandler> recipients = new ArrayList<>();
+            List<String> missing = new ArrayList<>();
+            resolveRecipients(message, recipients, missing);
+            if (!missing.isEmpty()) {
+                sendError("Recipient not found: " + String.join(", ", missing));
+            }
+            if (recipients.isEmpty()) {
+                if (missing.isEmpty()) {
+                    sendError("Recipient not found");
+                }
+                return;
+            }
+
             String transferId = UUID.randomUUID().toString();
-            long fileSize = file.length();
-            String fileName = file.getName();
-            int chunkSize = 4096; // 4KB chunks
-            long chunkCount = (fileSize + chunkSize - 1) / chunkSize;
+            long lastModified = file.lastModified();
+            FileChunkCache.Entry cached = cachedChunks(file);
+            long fileSize = cached != null ? cached.getFileSize() : file.length();
+            long chunkCount = (fileSize + FILE_CHUNK_SIZE - 1) / FILE_CHUNK_SIZE;
+
+            JSONObject fileInfo = new JSONObject();
+            fileInfo.put("type", TYPE_FILE_INFO);
+            fileInfo.put("sender", nickname);
+            fileInfo.put("file_name", file.getName());
+            fileInfo.put("file_size", fileSize);
+            fileInfo.put("chunk_size", FILE_CHUNK_SIZE);
+            fileInfo.put("chunk_count", chunkCount);
+            fileInfo.put("transfer_id", transferId);
+
+            long start = System.nanoTime();
+            FileFanOut fanOut = new FileFanOut(transferId, this, fileSize);
+            // Registered first: a recipient may answer the offer right away
+            outgoingTransfers.put(transferId, fanOut);
+            for (ClientHandler recipient : recipients) {
+                fanOut.add(recipient);
+                fileInfo.put("recipient", recipient.nickname);
+                recipient.deliver(fileInfo.toString(), PriorityOutbox.Lane.BULK);
+            }
+
+            try {
+                String sha256 = sendChunks(fanOut, file, cached);
+                // Before the completion frame, which is when NACKs may come
+                keepForRetransmit(new Retransmit(transferId, null, file, lastModified, fileSize,
+                        sha256, fanOut.recipientNames()));
+                fanOut.finish(sha256);
+                FILES_SENT.increment();
+                FILE_TRANSFER_TIME.recordSince(start);
+            } catch (IOException | InterruptedException e) {
+                sendError("File transfer failed: " + e.getMessage());
+                fanOut.abort();
+            } finally {
+                outgoingTransfers.remove(transferId);
+            }
+        }
+
+        // A file streamed up by the client itself: the server only relays
+        // chunks, holding at most UPLOAD_WINDOW of them (see FileFanOut)
+        private void handleUploadStart(JSONObject message) throws JSONException {
+            String transferId = message.getString("transfer_id");
+            if (nickname == null) {
+                cancelUpload(transferId, "You must set a nickname first");
+                return;
+            }
+            // Ends up in frames and file names on the recipients' side
+            String fileName = new File(message.getString("file_name")).getName();
+            if (!transferId.matches("[A-Za-z0-9-]{1,64}") || fileName.isEmpty()
+                    || outgoingTransfers.containsKey(transferId)) {
+                cancelUpload(transferId, "Invalid upload");
+                return;
+            }
+            // Chunk indexes are ints, and the fan-out counts on at least one
+            // chunk before the completion frame
+            long fileSize = message.getLong("file_size");
+            if (fileSize <= 0 || fileSize > (long) Integer.MAX_VALUE * FILE_CHUNK_SIZE) {
+                cancelUpload(transferId, "Invalid file size");
+                return;
+            }
+
+            List<ClientHandler> recipients = new ArrayList<>();
+            List<String> missing = new ArrayList<>();
+            resolveRecipients(message, recipients, missing);
+            if (!missing.isEmpty()) {
+                sendError("Recipient not found: " + String.join(", ", missing));
+            }
+            if (recipients.isEmpty()) {
+                cancelUpload(transferId, "Recipient not found");
+                return;
+            }
+
+            long chunkCount = (fileSize + FILE_CHUNK_SIZE - 1) / FILE_CHUNK_SIZE;
+            FileFanOut fanOut = new FileFanOut(transferId, this, fileSize);
+            fanOut.window = UPLOAD_WINDOW;
+            outgoingTransfers.put(transferId, fanOut);
+            addUpload(transferId, fanOut);
 
             JSONObject fileInfo = new JSONObject();
             fileInfo.put("type", TYPE_FILE_INFO);
             fileInfo.put("sender", nickname);
-            fileInfo.put("recipient", recipient);
             fileInfo.put("file_name", fileName);
             fileInfo.put("file_size", fileSize);
-            fileInfo.put("chunk_size", chunkSize);
+            fileInfo.put("chunk_size", FILE_CHUNK_SIZE);
             fileInfo.put("chunk_count", chunkCount);
             fileInfo.put("transfer_id", transferId);
+            for (ClientHandler recipient : recipients) {
+                fanOut.add(recipient);
+                fileInfo.put("recipient", recipient.nickname);
+                recipient.deliver(fileInfo.toString(), PriorityOutbox.Lane.BULK);
+            }
 
-            ClientHandler recipientHandler = findClientByNickname(recipient);
-            if (recipientHandler != null) {
-                recipientHandler.sendMessage(fileInfo.toString());
-
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    byte[] buffer = new byte[chunkSize];
-                    int bytesRead;
-                    int chunkIndex = 0;
-
-                    while ((bytesRead = fis.read(buffer)) != -1 && isRunning()) {
-                        JSONObject chunkInfo = new JSONObject();
-                        chunkInfo.put("type", TYPE_FILE_CHUNK);
-                        chunkInfo.put("transfer_id", transferId);
-                        chunkInfo.put("chunk_index", chunkIndex);
-                        chunkInfo.put("chunk_data", Base64.getEncoder().encodeToString(
-                                Arrays.copyOf(buffer, bytesRead)));
-
-                        recipientHandler.sendMessage(chunkInfo.toString());
-                        chunkIndex++;
-
-                        JSONObject progress = new JSONObject();
-                        progress.put("type", TYPE_PROGRESS);
-                        progress.put("transfer_id", transferId);
-                        progress.put("progress", (int) ((chunkIndex * 100) / chunkCount));
-                        sendMessage(progress.toString());
-
-                        Thread.sleep(10);
+            JSONObject ready = new JSONObject();
+            ready.put("type", "file_upload_ready");
+            ready.put("transfer_id", transferId);
+            ready.put("chunk_size", FILE_CHUNK_SIZE);
+            ready.put("credits", UPLOAD_WINDOW);
+            sendMessage(ready.toString(), PriorityOutbox.Lane.CONTROL);
+        }
+
+        private void handleUploadChunk(JSONObject message) throws JSONException {
+            if (message.has("recipient")) {
+                relayRetransmit(message);
+                return;
+            }
+            String transferId = message.getString("transfer_id");
+            FileFanOut fanOut = uploads().get(transferId);
+            if (fanOut == null) {
+                return; // cancelled; chunks already in flight are dropped
+            }
+            String data = message.getString("chunk_data");
+            if (!fanOut.acceptChunk(message.getLong("chunk_index")) || data.length() > MAX_ENCODED_CHUNK) {
+                cancelUpload(transferId, "Chunk out of order or beyond credit");
+                return;
+            }
+            // The upload frame already carries everything a file_chunk needs
+            message.put("type", TYPE_FILE_CHUNK);
+            try {
+                fanOut.publish(message.toString(), data.length() * 3L / 4);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelUpload(transferId, "Server shutting down");
+            }
+        }
+
+        private void handleUploadEnd(JSONObject message) throws JSONException {
+            if (message.has("recipient")) {
+                relayRetransmit(message);
+                return;
+            }
+            String transferId = message.getString("transfer_id");
+            FileFanOut fanOut = uploads().get(transferId);
+            if (fanOut == null) {
+                return;
+            }
+            if (!fanOut.isFullyReceived()) {
+                cancelUpload(transferId, "Upload ended before the last chunk");
+                return;
+            }
+            uploads().remove(transferId);
+            String sha256 = message.optString("sha256", null);
+            keepForRetransmit(new Retransmit(transferId, this, null, 0, fanOut.fileSize,
+                    sha256, fanOut.recipientNames()));
+            // Waits for the slowest recipient; not on this client's reader
+            threadPool.execute(() -> {
+                try {
+                    fanOut.finish(sha256);
+                    FILES_SENT.increment();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    outgoingTransfers.remove(transferId);
+                }
+            });
+        }
+
+        void cancelUpload(String transferId, String reason) {
+            FileFanOut fanOut = uploads().remove(transferId);
+            if (fanOut != null) {
+                outgoingTransfers.remove(transferId);
+                fanOut.abort();
+            }
+            JSONObject cancel = new JSONObject();
+            cancel.put("type", "file_upload_cancel");
+            cancel.put("transfer_id", transferId);
+            cancel.put("reason", reason);
+            sendMessage(cancel.toString(), PriorityOutbox.Lane.CONTROL);
+        }
+
+        // A recipient that found chunks missing or corrupt at the completion
+        // frame asks for just those again; it checks the file once it has
+        // them and the completion frame that follows them
+        private void handleFileNack(JSONObject message) throws JSONException {
+            String transferId = message.getString("transfer_id");
+            Retransmit source = retransmits.get(transferId);
+            if (source == null || nickname == null || !source.recipients.contains(nickname)) {
+                sendMessage(completionFrame(transferId, "failed", null), PriorityOutbox.Lane.BULK);
+                return;
+            }
+            JSONArray list = message.getJSONArray("chunks");
+            if (list.length() == 0 || list.length() > MAX_NACK_CHUNKS) {
+                sendError("A NACK lists between 1 and " + MAX_NACK_CHUNKS + " chunks");
+                return;
+            }
+            List<Integer> indices = new ArrayList<>(list.length());
+            for (int i = 0; i < list.length(); i++) {
+                int index = list.getInt(i);
+                if (index < 0 || index >= source.chunkCount) {
+                    sendError("No chunk " + index + " in transfer " + transferId);
+                    return;
+                }
+                indices.add(index);
+            }
+            FILE_NACKS.increment();
+
+            if (source.uploader == null) {
+                threadPool.execute(() -> resendChunks(source, indices));
+            } else if (source.uploader.cleanedUp.get()) {
+                sendMessage(completionFrame(transferId, "failed", null), PriorityOutbox.Lane.BULK);
+            } else {
+                JSONObject nack = new JSONObject();
+                nack.put("type", TYPE_NACK);
+                nack.put("transfer_id", transferId);
+                nack.put("recipient", nickname);
+                nack.put("chunks", new JSONArray(indices));
+                source.uploader.deliver(nack.toString(), PriorityOutbox.Lane.CONTROL);
+            }
+        }
+
+        // A server file's chunks for this recipient only, then a completion
+        private void resendChunks(Retransmit source, List<Integer> indices) {
+            String status = "success";
+            FileChunkCache.Entry cached = cachedChunks(source.file);
+            if (cached != null && !cached.getHash().equals(source.sha256)) {
+                cached = null; // the file has changed since
+            }
+            try (RandomAccessFile in = cached == null ? new RandomAccessFile(source.file, "r") : null) {
+                if (in != null && (source.file.lastModified() != source.lastModified || in.length() != source.fileSize)) {
+                    throw new IOException("file changed since it was sent");
+                }
+                byte[] buffer = new byte[FILE_CHUNK_SIZE];
+                for (int index : indices) {
+                    String frame;
+                    if (cached != null) {
+                        frame = cached.chunkFrame(source.transferId, index);
+                    } else {
+                        long offset = (long) index * FILE_CHUNK_SIZE;
+                        int length = (int) Math.min(FILE_CHUNK_SIZE, source.fileSize - offset);
+                        in.seek(offset);
+                        in.readFully(buffer, 0, length);
+                        frame = chunkFrame(source.transferId, index, buffer, length);
                     }
+                    sendMessage(frame, PriorityOutbox.Lane.BULK);
+                    CHUNKS_RETRANSMITTED.increment();
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not retransmit {} to {}: {}", source.file, nickname, e.getMessage());
+                status = "failed";
+            }
+            sendMessage(completionFrame(source.transferId, status, source.sha256), PriorityOutbox.Lane.BULK);
+        }
 
-                    JSONObject completion = new JSONObject();
-                    completion.put("type", TYPE_COMPLETE);
-                    completion.put("transfer_id", transferId);
-                    completion.put("status", "success");
-                    sendMessage(completion.toString());
-                    recipientHandler.sendMessage(completion.toString());
+        // An uploader answering a forwarded NACK: chunks with a "recipient",
+        // then an end frame, passed on to that recipient alone
+        private void relayRetransmit(JSONObject message) throws JSONException {
+            String transferId = message.getString("transfer_id");
+            String name = message.getString("recipient");
+            Retransmit source = retransmits.get(transferId);
+            ClientHandler recipient = source != null && source.uploader == this && source.recipients.contains(name)
+                    ? findClientByNickname(name) : null;
+            if (recipient == null) {
+                return; // expired, or the recipient has gone
+            }
+            if (!message.has("chunk_data")) {
+                recipient.deliver(completionFrame(transferId, message.optString("status", "success"),
+                        source.sha256), PriorityOutbox.Lane.BULK);
+                return;
+            }
+            if (message.getString("chunk_data").length() > MAX_ENCODED_CHUNK) {
+                return;
+            }
+            message.remove("recipient");
+            message.put("type", TYPE_FILE_CHUNK);
+            recipient.deliver(message.toString(), PriorityOutbox.Lane.BULK);
+            CHUNKS_RETRANSMITTED.increment();
+        }
 
-                } catch (IOException | InterruptedException e) {
-                    sendError("File transfer failed: " + e.getMessage());
+        private void resolveRecipients(JSONObject message, List<ClientHandler> recipients, List<String> missing) {
+            Set<String> names = new LinkedHashSet<>();
+            JSONArray list = message.optJSONArray("recipients");
+            if (list != null) {
+                for (int i = 0; i < list.length(); i++) {
+                    names.add(list.getString(i));
                 }
             } else {
-                sendError("Recipient not found");
+                names.add(message.getString("recipient"));
+            }
+
+            if (names.remove("*")) {
+                for (ClientHandler handler : clients.values()) {
+                    if (handler != this && handler.nickname != null && !recipients.contains(handler)) {
+                        recipients.add(handler);
+                    }
+                }
+            }
+            for (String name : names) {
+                ClientHandler handler = name.equals(nickname) ? null : findClientByNickname(name);
+                if (handler == null) {
+                    missing.add(name);
+                } else if (!recipients.contains(handler)) {
+                    recipients.add(handler);
+                }
             }
         }
 
-        private ClientHandler findClientByNickname(String nickname) {
-            for (Map.Entry<String, String> entry : nicknames.entrySet()) {
-                if (entry.getValue().equals(nickname)) {
-                    return clients.get(entry.getKey());
+        // Each chunk is read and framed once, then handed to every recipient;
+        // returns the SHA-256 of the file
+        private String sendChunks(FileFanOut fanOut, File file, FileChunkCache.Entry cached)
+                throws IOException, InterruptedException {
+            if (cached != null) {
+                // Pre-encoded chunks: no disk read and no Base64 work per send
+                for (int chunkIndex = 0; chunkIndex < cached.getChunkCount() && isRunning && fanOut.isActive(); chunkIndex++) {
+                    long length = Math.min(FILE_CHUNK_SIZE, cached.getFileSize() - (long) chunkIndex * FILE_CHUNK_SIZE);
+                    fanOut.publish(cached.chunkFrame(fanOut.transferId, chunkIndex), length);
+                    Thread.sleep(10);
                 }
+                return cached.getHash();
             }
-            return null;
+
+            // Chunks straight from disk, for files the cache does not take
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            try (FileInputStream fis = new FileInputStream(file)) {
+                byte[] buffer = new byte[FILE_CHUNK_SIZE];
+                int bytesRead;
+                int chunkIndex = 0;
+
+                // Full chunks, so chunk i is always at i * FILE_CHUNK_SIZE
+                while ((bytesRead = fis.readNBytes(buffer, 0, FILE_CHUNK_SIZE)) > 0 && isRunning && fanOut.isActive()) {
+                    digest.update(buffer, 0, bytesRead);
+                    fanOut.publish(chunkFrame(fanOut.transferId, chunkIndex, buffer, bytesRead), bytesRead);
+                    chunkIndex++;
+
+                    Thread.sleep(10);
+                }
+            }
+            return FileTransfer.hex(digest.digest());
+        }
+
+        // Announces the move, then closes the connection after delayNanos;
+        // the client reconnects through the load balancer to another node
+        void migrate(long delayNanos) {
+            migrating = true;
+            JSONObject message = new JSONObject();
+            message.put("type", "migrate");
+            message.put("reason", "server draining");
+            message.put("delay_ms", TimeUnit.NANOSECONDS.toMillis(delayNanos));
+            sendMessage(message.toString(), PriorityOutbox.Lane.CONTROL);
+            timingWheel.schedule(() -> threadPool.execute(() -> {
+                quit = true;
+                disconnect();
+            }), delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private ClientHandler findClientByNickname(String nickname) {
+            return findLocalClient(nickname);
         }
 
         private void handleFileTransferInfo(JSONObject message) throws JSONException {
@@ -275,7 +1724,7 @@ public class ChatServer {
             response.put("file_size", fileSize);
             sendMessage(response.toString());
 
-            activeTransfers.put(transferId, new FileTransfer(fileName, fileSize, chunkCount));
+            addIncomingTransfer(transferId, new FileTransfer(fileName, fileSize, chunkCount));
         }
 
         private void handleFileChunk(JSONObject message) throws JSONException {
@@ -283,15 +1732,15 @@ public class ChatServer {
             int chunkIndex = message.getInt("chunk_index");
             String chunkData = message.getString("chunk_data");
 
-            FileTransfer transfer = activeTransfers.get(transferId);
+            FileTransfer transfer = activeTransfers().get(transferId);
             if (transfer != null) {
-                transfer.addChunk(chunkIndex, Base64.getDecoder().decode(chunkData));
+                transfer.addChunk(chunkIndex, Base64.getDecoder().decode(chunkData), message.optLong("crc32c", -1));
 
                 JSONObject progress = new JSONObject();
                 progress.put("type", TYPE_PROGRESS);
                 progress.put("transfer_id", transferId);
                 progress.put("progress", transfer.getProgress());
-                sendMessage(progress.toString());
+                sendMessage(progress.toString(), PriorityOutbox.Lane.BULK);
             }
         }
 
@@ -301,7 +1750,11 @@ public class ChatServer {
 
             if (!accepted) {
                 sendError("Recipient declined file transfer");
-                activeTransfers.remove(transferId);
+                activeTransfers().remove(transferId);
+                FileFanOut fanOut = outgoingTransfers.get(transferId);
+                if (fanOut != null) {
+                    fanOut.decline(this);
+                }
             }
         }
 
@@ -312,25 +1765,97 @@ public class ChatServer {
                 return;
             }
 
-            if (nicknames.containsValue(newNickname)) {
+            ClusterBus bus = clusterBus;
+            if (nicknames.containsValue(newNickname)
+                    || (bus != null && bus.isRemoteNickname(newNickname))) {
                 sendError("Nickname already in use");
                 return;
             }
 
             if (this.nickname != null) {
                 nicknames.remove(clientId);
+                presence.left(this.nickname);
+                if (bus != null) {
+                    bus.publishLeave(this.nickname);
+                }
             }
 
             this.nickname = newNickname;
             nicknames.put(clientId, newNickname);
+            presence.joined(newNickname);
+            if (bus != null) {
+                bus.publishJoin(newNickname);
+            }
 
             JSONObject response = new JSONObject();
             response.put("type", "nickname_set");
             response.put("status", "success");
             response.put("nickname", newNickname);
-            sendMessage(response.toString());
+            if (resumeGraceNanos > 0) {
+                if (resumeToken == null) {
+                    resumeToken = newResumeToken();
+                }
+                response.put("resume_token", resumeToken);
+            }
+            sendMessage(response.toString(), PriorityOutbox.Lane.CONTROL);
+        }
 
-            broadcastSystemMessage(nickname + " has joined the chat");
+        // Everyone online, this node's users as of the last presence delta
+        // plus those on the other nodes
+        private void handleGetRoster() {
+            Set<String> users = new TreeSet<>(presence.snapshot());
+            ClusterBus bus = clusterBus;
+            if (bus != null) {
+                users.addAll(bus.remoteNicknames());
+            }
+            JSONObject roster = new JSONObject();
+            roster.put("type", "roster");
+            roster.put("users", new JSONArray(users));
+            roster.put("timestamp", System.currentTimeMillis());
+            sendMessage(roster.toString());
+        }
+
+        // First frame of a reconnecting client. An unknown or expired token
+        // falls back to setting the nickname the client sends along.
+        private void handleResume(JSONObject message) throws JSONException {
+            if (nickname != null) {
+                sendError("Session already established");
+                return;
+            }
+            ClientHandler previous = detachedSessions.remove(message.getString("token"));
+            if (previous == null) {
+                if (message.has("nickname")) {
+                    handleSetNickname(message);
+                } else {
+                    sendError("Unknown or expired session");
+                }
+                return;
+            }
+            previous.resumeDeadline.cancel();
+
+            clients.remove(previous.clientId);
+            nicknames.remove(previous.clientId);
+            this.nickname = previous.nickname;
+            this.resumeToken = previous.resumeToken;
+            nicknames.put(clientId, nickname);
+            SESSIONS_RESUMED.increment();
+
+            // Under the replay lock so frames still arriving for the old
+            // session queue up behind the replayed ones
+            synchronized (previous) {
+                JSONObject resumed = new JSONObject();
+                resumed.put("type", "session_resumed");
+                resumed.put("nickname", nickname);
+                resumed.put("resume_token", resumeToken);
+                resumed.put("replayed", previous.replay.size());
+                resumed.put("dropped", previous.replayDropped);
+                sendMessage(resumed.toString(), PriorityOutbox.Lane.CONTROL);
+                for (String frame : previous.replay) {
+                    sendMessage(frame);
+                }
+                previous.replay = null;
+                previous.resumedBy = this;
+            }
         }
 
         private void handlePublicMessage(JSONObject message) throws JSONException {
@@ -363,17 +1888,25 @@ public class ChatServer {
             String recipient = message.getString("recipient");
             String content = message.getString("content");
 
+            JSONObject privateMsg = new JSONObject();
+            privateMsg.put("type", "private_message");
+            privateMsg.put("sender", nickname);
+            privateMsg.put("recipient", recipient);
+            privateMsg.put("content", content);
+            privateMsg.put("timestamp", System.currentTimeMillis());
+
             ClientHandler recipientHandler = findClientByNickname(recipient);
+            ClusterBus bus = clusterBus;
+            boolean delivered = false;
             if (recipientHandler != null) {
-                JSONObject privateMsg = new JSONObject();
-                privateMsg.put("type", "private_message");
-                privateMsg.put("sender", nickname);
-                privateMsg.put("recipient", recipient);
-                privateMsg.put("content", content);
-                privateMsg.put("timestamp", System.currentTimeMillis());
-
-                recipientHandler.sendMessage(privateMsg.toString());
+                recipientHandler.deliver(privateMsg.toString());
+                delivered = true;
+            } else if (bus != null) {
+                // Recipient may be connected to another node
+                delivered = bus.sendPrivate(recipient, privateMsg.toString());
+            }
 
+            if (delivered) {
                 JSONObject confirmation = new JSONObject();
                 confirmation.put("type", "message_sent");
                 confirmation.put("status", "success");
@@ -386,51 +1919,177 @@ public class ChatServer {
 
         private void broadcastMessage(JSONObject message) {
             String jsonMessage = message.toString();
-            for (ClientHandler handler : clients.values()) {
-                if (handler != this) {
-                    handler.sendMessage(jsonMessage);
-                }
+            deliverBroadcast(jsonMessage, this);
+            ClusterBus bus = clusterBus;
+            if (bus != null) {
+                bus.publishBroadcast(jsonMessage);
             }
         }
 
-        private void broadcastSystemMessage(String content) {
-            JSONObject systemMessage = new JSONObject();
-            systemMessage.put("type", "system_message");
-            systemMessage.put("content", content);
-            systemMessage.put("timestamp", System.currentTimeMillis());
-            broadcastMessage(systemMessage);
+        public void sendMessage(String message) {
+            sendMessage(message, PriorityOutbox.Lane.CHAT);
+        }
+
+        // A frame from another session, a broadcast or a transfer thread: the
+        // pool writes it, so a recipient that stops reading never holds up
+        // the caller. sendMessage() may write inline and is for a session's
+        // replies to itself.
+        void deliver(String message) {
+            deliver(message, PriorityOutbox.Lane.CHAT);
         }
 
-        public void sendMessage(String message) {
-            out.println(message);
+        void deliver(String message, PriorityOutbox.Lane lane) {
+            if (detached && buffer(message)) {
+                return;
+            }
+            if (pipeline != null) {
+                pipeline.send(this, message, lane);
+            } else if (outbox.enqueue(message, lane)) {
+                outbox.drainLater();
+            } else {
+                closeSlow();
+            }
+        }
+
+        public void sendMessage(String message, PriorityOutbox.Lane lane) {
+            if (detached && buffer(message)) {
+                return;
+            }
+            if (pipeline != null) {
+                pipeline.send(this, message, lane);
+            } else if (!outbox.send(message, lane)) {
+                closeSlow();
+            }
+        }
+
+        // Pipeline; queues the frame and returns the session whose outbox
+        // needs draining. A session detached meanwhile buffers the frame or
+        // passes it on to the one that resumed it.
+        ClientHandler write(String message, PriorityOutbox.Lane lane) {
+            if (detached) {
+                synchronized (this) {
+                    if (resumedBy == null) {
+                        buffer(message);
+                        return null;
+                    }
+                }
+                return resumedBy.write(message, lane);
+            }
+            if (!outbox.enqueue(message, lane)) {
+                closeSlow();
+                return null;
+            }
+            return this;
+        }
+
+        // A full outbox lane means the peer stopped reading; closing the
+        // session frees what it holds instead of dropping its frames one by
+        // one. Not inline, as callers may hold another session's lock.
+        private void closeSlow() {
+            if (!outbox.close()) {
+                return;
+            }
+            SLOW_SESSIONS_CLOSED.increment();
+            LOG.warn("Closing slow client {}: outbound queue full", clientId);
+            try {
+                threadPool.execute(this::disconnect);
+            } catch (RejectedExecutionException e) {
+                // Shutting down; every session is closed anyway
+            }
         }
 
         private void sendError(String error) {
             JSONObject errorMsg = new JSONObject();
             errorMsg.put("type", "error");
             errorMsg.put("message", error);
-            sendMessage(errorMsg.toString());
+            sendMessage(errorMsg.toString(), PriorityOutbox.Lane.CONTROL);
+        }
+
+        private synchronized boolean buffer(String message) {
+            if (resumedBy != null) {
+                resumedBy.deliver(message);
+            } else if (replay != null) {
+                if (replay.size() == replayCapacity) {
+                    replay.poll();
+                    replayDropped++;
+                    REPLAY_DROPPED.increment();
+                }
+                replay.add(message);
+            }
+            return true;
+        }
+
+        // A broadcast for a detached edge fan-out session. Once resumed it is
+        // not passed on: the new session gets broadcasts on its own.
+        private synchronized void bufferBroadcast(String message) {
+            if (resumedBy == null && replay != null) {
+                buffer(message);
+            }
         }
 
         private void cleanup() {
+            if (!cleanedUp.compareAndSet(false, true)) {
+                return;
+            }
+            stopHeartbeat();
+            for (String transferId : uploads().keySet()) {
+                cancelUpload(transferId, "sender disconnected");
+            }
+            if (resumeToken != null && nickname != null && !quit && isRunning() && resumeGraceNanos > 0) {
+                detach();
+                return;
+            }
+            leave();
+        }
+
+        // Keeps nickname and presence while the client may still come back
+        private void detach() {
+            synchronized (this) {
+                replay = new ArrayDeque<>();
+                detached = true;
+            }
+            // The deadline is set before the session is published: whoever
+            // takes it from detachedSessions cancels it
+            resumeDeadline = timingWheel.schedule(() -> threadPool.execute(() -> {
+                if (detachedSessions.remove(resumeToken, this)) {
+                    leave();
+                }
+            }), resumeGraceNanos, TimeUnit.NANOSECONDS);
+            detachedSessions.put(resumeToken, this);
+            closeTransport();
+        }
+
+        private void leave() {
             clients.remove(clientId);
             if (nickname != null) {
                 nicknames.remove(clientId);
-                broadcastSystemMessage(nickname + " has left the chat");
+                presence.left(nickname);
+                ClusterBus bus = clusterBus;
+                if (bus != null) {
+                    bus.publishLeave(nickname);
+                }
             }
 
-            try {
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (clientSocket != null) clientSocket.close();
-            } catch (IOException e) {
-                System.err.println("Error cleaning up client " + clientId);
-            }
+            closeTransport();
 
             // Clean up any incomplete file transfers
-            for (FileTransfer transfer : activeTransfers.values()) {
+            for (FileTransfer transfer : activeTransfers().values()) {
                 transfer.cleanup();
             }
-            activeTransfers.clear();
+            activeTransfers().clear();
+        }
+
+        private void closeTransport() {
+            outbox.close();
+            if (link != null) {
+                link.endStream(streamId);
+            } else {
+                try {
+                    if (out != null) out.close();
+                    if (clientSocket != null) clientSocket.close();
+                } catch (IOException e) {
+                    LOG.warn("Error cleaning up client {}", clientId);
+                }
+            }
         }
     }}
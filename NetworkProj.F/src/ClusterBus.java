@@ -0,0 +1,357 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import org.json.*;
+
+// Inter-node bus that federates several ChatServer instances. Each node keeps
+// one outbound link per peer and accepts inbound links from peers. Nodes
+// exchange presence (which nickname lives on which node) and forward
+// broadcasts and private messages. Events queued while a link is writing are
+// sent together as one batch line: {"from": nodeId, "events": [...]}
+//
+// The bus port is not authenticated, so inbound links are only accepted from
+// the addresses of configured peers, plus any listed in cluster.allow
+// (comma-separated hosts). cluster.bind_address binds the bus to one
+// interface instead of all of them.
+public class ClusterBus {
+    private static final Log LOG = Log.get("cluster");
+    public interface Listener {
+        void onRemoteBroadcast(String frame);
+        void onRemotePrivate(String recipient, String frame);
+        Collection<String> localNicknames();
+    }
+
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_QUEUED_EVENTS = 10_000;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final String nodeId;
+    private final ServerSocket busSocket;
+    private final Listener listener;
+    private final Map<String, String> remotePresence = new ConcurrentHashMap<>(); // nickname -> node
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    private final Set<Socket> inboundLinks = ConcurrentHashMap.newKeySet();
+    private final Set<InetAddress> allowedPeers = ConcurrentHashMap.newKeySet();
+    private final List<Metrics.Gauge> gauges = new ArrayList<>();
+    private volatile boolean isRunning = true;
+
+    // Node ids are "host:busPort", so peers must be configured with the same
+    // host name this node advertises
+    public ClusterBus(String advertisedHost, int busPort, Listener listener) throws IOException {
+        this(advertisedHost, busPort, Collections.emptyList(), listener);
+    }
+
+    // Peers given here are allowed in before the bus starts accepting, so
+    // none of their first links is turned away
+    public ClusterBus(String advertisedHost, int busPort, List<InetSocketAddress> peerAddresses, Listener listener)
+            throws IOException {
+        this.nodeId = advertisedHost + ":" + busPort;
+        this.listener = listener;
+        for (String host : System.getProperty("cluster.allow", "").split(",")) {
+            if (!host.isBlank()) {
+                allow(host.trim());
+            }
+        }
+        for (InetSocketAddress peer : peerAddresses) {
+            allow(peer.getHostString());
+        }
+        String bindAddress = System.getProperty("cluster.bind_address");
+        this.busSocket = new ServerSocket(busPort, 50,
+                bindAddress != null ? InetAddress.getByName(bindAddress) : null);
+
+        gauges.add(Metrics.gauge("cluster_bus_queued_events", () -> {
+            long queued = 0;
+            for (Peer peer : peers) {
+                queued += peer.queue.size();
+            }
+            return queued;
+        }));
+        gauges.add(Metrics.gauge("cluster_remote_nicknames", remotePresence::size));
+
+        Thread acceptor = new Thread(this::acceptLinks, "cluster-bus-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Cluster bus {} listening on port {}", nodeId, busPort);
+        for (InetSocketAddress peer : peerAddresses) {
+            addPeer(peer.getHostString(), peer.getPort());
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void addPeer(String host, int port) {
+        allow(host);
+        Peer peer = new Peer(host, port);
+        peers.add(peer);
+        peer.start();
+    }
+
+    private void allow(String host) {
+        try {
+            allowedPeers.addAll(Arrays.asList(InetAddress.getAllByName(host)));
+        } catch (UnknownHostException e) {
+            LOG.warn("Cannot resolve cluster peer {}: {}", host, e.getMessage());
+        }
+    }
+
+    public boolean isRemoteNickname(String nickname) {
+        return remotePresence.containsKey(nickname);
+    }
+
+    public String ownerOf(String nickname) {
+        return remotePresence.get(nickname);
+    }
+
+    public Set<String> remoteNicknames() {
+        return Collections.unmodifiableSet(remotePresence.keySet());
+    }
+
+    public void publishJoin(String nickname) {
+        JSONObject event = new JSONObject();
+        event.put("op", "join");
+        event.put("nickname", nickname);
+        publish(event);
+    }
+
+    public void publishLeave(String nickname) {
+        JSONObject event = new JSONObject();
+        event.put("op", "leave");
+        event.put("nickname", nickname);
+        publish(event);
+    }
+
+    public void publishBroadcast(String frame) {
+        JSONObject event = new JSONObject();
+        event.put("op", "broadcast");
+        event.put("frame", frame);
+        publish(event);
+    }
+
+    // Routes a private message only to the node that owns the recipient
+    public boolean sendPrivate(String recipient, String frame) {
+        String owner = remotePresence.get(recipient);
+        if (owner == null) {
+            return false;
+        }
+        JSONObject event = new JSONObject();
+        event.put("op", "private");
+        event.put("recipient", recipient);
+        event.put("frame", frame);
+        for (Peer peer : peers) {
+            if (owner.equals(peer.remoteNodeId)) {
+                return peer.enqueue(event);
+            }
+        }
+        return false;
+    }
+
+    private void publish(JSONObject event) {
+        for (Peer peer : peers) {
+            peer.enqueue(event);
+        }
+    }
+
+    public void close() {
+        isRunning = false;
+        try {
+            busSocket.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing cluster bus: {}", e.getMessage());
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        for (Socket link : inboundLinks) {
+            try {
+                link.close();
+            } catch (IOException ignored) {
+            }
+        }
+        remotePresence.clear();
+        for (Metrics.Gauge gauge : gauges) {
+            gauge.unregister();
+        }
+    }
+
+    private void acceptLinks() {
+        while (isRunning) {
+            try {
+                Socket link = busSocket.accept();
+                if (!allowedPeers.contains(link.getInetAddress())) {
+                    LOG.warn("Refused cluster link from {}, not a configured peer", link.getInetAddress());
+                    link.close();
+                    continue;
+                }
+                SocketProfile.forEndpoint("cluster", SocketProfile.PROXY).apply(link);
+                inboundLinks.add(link);
+                Thread reader = new Thread(() -> readLink(link), "cluster-bus-in");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (isRunning) {
+                    LOG.warn("Cluster bus accept failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void readLink(Socket link) {
+        String remoteNode = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(link.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // A bad line or event is skipped; the rest of the link is fine
+                JSONArray events;
+                try {
+                    JSONObject batch = new JSONObject(line);
+                    remoteNode = batch.getString("from");
+                    events = batch.getJSONArray("events");
+                } catch (JSONException e) {
+                    LOG.warn("Skipping malformed cluster batch from {}: {}", link.getInetAddress(), e.getMessage());
+                    continue;
+                }
+                for (int i = 0; i < events.length(); i++) {
+                    try {
+                        applyEvent(remoteNode, events.getJSONObject(i));
+                    } catch (JSONException e) {
+                        LOG.warn("Skipping malformed cluster event from {}: {}", remoteNode, e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (isRunning) {
+                LOG.warn("Cluster link from {} failed: {}", remoteNode, e.getMessage());
+            }
+        } finally {
+            inboundLinks.remove(link);
+            if (remoteNode != null) {
+                final String node = remoteNode;
+                remotePresence.values().removeIf(owner -> owner.equals(node));
+            }
+            try {
+                link.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void applyEvent(String fromNode, JSONObject event) {
+        switch (event.getString("op")) {
+            case "snapshot":
+                remotePresence.values().removeIf(owner -> owner.equals(fromNode));
+                JSONArray nicknames = event.getJSONArray("nicknames");
+                for (int i = 0; i < nicknames.length(); i++) {
+                    remotePresence.put(nicknames.getString(i), fromNode);
+                }
+                break;
+            case "join":
+                remotePresence.put(event.getString("nickname"), fromNode);
+                break;
+            case "leave":
+                remotePresence.remove(event.getString("nickname"), fromNode);
+                break;
+            case "broadcast":
+                listener.onRemoteBroadcast(event.getString("frame"));
+                break;
+            case "private":
+                listener.onRemotePrivate(event.getString("recipient"), event.getString("frame"));
+                break;
+            default:
+                LOG.warn("Unknown cluster event: {}", event);
+        }
+    }
+
+    // Outbound link to one peer; reconnects and resends a presence snapshot
+    private class Peer implements Runnable {
+        private final String host;
+        private final int port;
+        private final BlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>(MAX_QUEUED_EVENTS);
+        private final String remoteNodeId;
+        private volatile boolean connected;
+        private volatile Socket socket;
+        private Thread thread;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.remoteNodeId = host + ":" + port;
+        }
+
+        void start() {
+            thread = new Thread(this, "cluster-bus-peer-" + host + ":" + port);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        boolean enqueue(JSONObject event) {
+            // Events for a disconnected peer are dropped; the snapshot on
+            // reconnect restores presence
+            return connected && queue.offer(event);
+        }
+
+        @Override
+        public void run() {
+            List<JSONObject> batch = new ArrayList<>(MAX_BATCH);
+            while (isRunning) {
+                try (Socket s = SocketProfile.forEndpoint("cluster", SocketProfile.PROXY).connect(host, port);
+                     Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(),
+                             StandardCharsets.UTF_8))) {
+                    socket = s;
+                    queue.clear();
+                    connected = true;
+
+                    JSONObject snapshot = new JSONObject();
+                    snapshot.put("op", "snapshot");
+                    snapshot.put("nicknames", new JSONArray(listener.localNicknames()));
+                    batch.add(snapshot);
+                    writeBatch(out, batch);
+
+                    while (isRunning) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        writeBatch(out, batch);
+                    }
+                } catch (IOException e) {
+                    // Peer not up yet or link dropped; retry below
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    connected = false;
+                    batch.clear();
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void writeBatch(Writer out, List<JSONObject> batch) throws IOException {
+            JSONObject line = new JSONObject();
+            line.put("from", nodeId);
+            line.put("events", new JSONArray(batch));
+            out.write(line.toString());
+            out.write('\n');
+            out.flush();
+            batch.clear();
+        }
+
+        void close() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+// Accept side shared by all servers. Binds with an explicit backlog and runs
+// one or more acceptor threads; with several acceptors each gets its own
+// SO_REUSEPORT socket on the same port where the platform supports it, so
+// the kernel spreads incoming connections, and otherwise they share one
+// socket. Connections beyond maxConnections are closed right after accept;
+// the others get the listener's SocketProfile before they are handed off.
+// The handler runs on the acceptor thread and must hand the connection off
+// quickly.
+//
+// Settings come from system properties, <name>.listen.* overriding listen.*:
+//   listen.backlog=1024          pending connections queued by the kernel
+//   listen.acceptors=1           acceptor threads
+//   listen.max_connections=0     admission limit, 0 for none
+//   <name>.socket.profile        socket options, see SocketProfile
+//
+// SO_REUSEPORT also lets a second process bind the same port, so it is only
+// used when more than one acceptor is configured.
+public class ConnectionListener {
+    public interface Handler {
+        void accept(SocketChannel channel) throws IOException;
+    }
+
+    private static final Log LOG = Log.get("listener");
+
+    private final String name;
+    private final int maxConnections;
+    private final SocketProfile profile;
+    private final List<ServerSocketChannel> channels = new ArrayList<>();
+    private final int acceptorCount;
+    private volatile IntSupplier activeConnections = () -> 0;
+    private volatile boolean isOpen = true;
+
+    private final Metrics.Counter accepted;
+    private final Metrics.Counter rejected;
+    private final Metrics.Counter acceptErrors;
+    private final LatencyHistogram handoffTime;
+    private final Metrics.Gauge acceptRate;
+    // Accepts in the current and the last completed one-second window
+    private long windowStart = System.nanoTime();
+    private long windowAccepts;
+    private volatile long lastWindowAccepts;
+
+    public ConnectionListener(String name, int port) throws IOException {
+        this(name, port, SocketProfile.INTERACTIVE);
+    }
+
+    public ConnectionListener(String name, int port, SocketProfile defaultProfile) throws IOException {
+        this(name, port, setting(name, "backlog", 1024), setting(name, "acceptors", 1),
+                setting(name, "max_connections", 0), SocketProfile.forEndpoint(name, defaultProfile));
+    }
+
+    public ConnectionListener(String name, int port, int backlog, int acceptors, int maxConnections,
+            SocketProfile profile) throws IOException {
+        this.name = name;
+        this.maxConnections = maxConnections;
+        this.profile = profile;
+        this.acceptorCount = Math.max(1, acceptors);
+
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = acceptorCount > 1
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        try {
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            profile.applyToListener(first);
+            first.bind(new InetSocketAddress(port), backlog);
+            channels.add(first);
+            for (int i = 1; reusePort && i < acceptorCount; i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channels.add(channel);
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                profile.applyToListener(channel);
+                channel.bind(new InetSocketAddress(first.socket().getLocalPort()), backlog);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        accepted = Metrics.counter(name + "_connections_accepted_total");
+        rejected = Metrics.counter(name + "_connections_rejected_total");
+        acceptErrors = Metrics.counter(name + "_accept_errors_total");
+        handoffTime = Metrics.histogram(name + "_accept_handoff_ns");
+        acceptRate = Metrics.gauge(name + "_accepts_per_second", this::acceptsPerSecond);
+    }
+
+    private static int setting(String name, String key, int defaultValue) {
+        String value = System.getProperty(name + ".listen." + key, System.getProperty("listen." + key));
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    // Count of open connections the admission gate compares against
+    public void setActiveConnections(IntSupplier activeConnections) {
+        this.activeConnections = activeConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getPort() {
+        return channels.get(0).socket().getLocalPort();
+    }
+
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    // Accepts until close(); blocks the caller, which acts as one acceptor
+    public void serve(Handler handler) {
+        List<Thread> acceptors = new ArrayList<>();
+        for (int i = 1; i < acceptorCount; i++) {
+            ServerSocketChannel channel = channels.get(i % channels.size());
+            Thread thread = new Thread(() -> acceptLoop(channel, handler), name + "-acceptor-" + i);
+            thread.start();
+            acceptors.add(thread);
+        }
+        acceptLoop(channels.get(0), handler);
+        for (Thread thread : acceptors) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel server, Handler handler) {
+        while (isOpen) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // Typically out of file descriptors; back off instead of spinning
+                acceptErrors.increment();
+                LOG.warn("Error accepting on {}: {}", name, e.getMessage());
+                pause();
+                continue;
+            }
+
+            long start = System.nanoTime();
+            countAccept(start);
+            if (maxConnections > 0 && activeConnections.getAsInt() >= maxConnections) {
+                rejected.increment();
+                closeQuietly(channel);
+                continue;
+            }
+            accepted.increment();
+            try {
+                profile.apply(channel);
+                handler.accept(channel);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Error handing off connection on {}: {}", name, e.getMessage());
+                closeQuietly(channel);
+            }
+            handoffTime.recordSince(start);
+        }
+    }
+
+    private synchronized void countAccept(long now) {
+        if (now - windowStart >= 1_000_000_000L) {
+            // A gap of more than one window means the last full second was idle
+            lastWindowAccepts = now - windowStart >= 2_000_000_000L ? 0 : windowAccepts;
+            windowStart = now;
+            windowAccepts = 0;
+        }
+        windowAccepts++;
+    }
+
+    private synchronized long acceptsPerSecond() {
+        long age = System.nanoTime() - windowStart;
+        if (age >= 2_000_000_000L) {
+            return 0;
+        }
+        return age >= 1_000_000_000L ? windowAccepts : lastWindowAccepts;
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void close() {
+        isOpen = false;
+        if (acceptRate != null) { // null if binding failed
+            acceptRate.unregister();
+        }
+        for (ServerSocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing {} listener: {}", name, e.getMessage());
+            }
+        }
+    }
+}
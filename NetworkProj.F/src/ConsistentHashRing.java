@@ -0,0 +1,144 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Consistent-hash ring with virtual nodes. Lookups run against an immutable
+// sorted snapshot, so they never lock; add/remove rebuild the snapshot.
+public class ConsistentHashRing<T> {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final int virtualNodes;
+    private final List<T> nodes = new ArrayList<>();
+    private volatile Snapshot<T> snapshot = new Snapshot<>(new long[0], new Object[0]);
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    public synchronized void add(T node) {
+        if (!nodes.contains(node)) {
+            nodes.add(node);
+            rebuild();
+        }
+    }
+
+    public synchronized void remove(T node) {
+        if (nodes.remove(node)) {
+            rebuild();
+        }
+    }
+
+    public synchronized List<T> getNodes() {
+        return Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+    public int size() {
+        return snapshot.owners.length / virtualNodes;
+    }
+
+    public T get(String key) {
+        return get(hash(key));
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(long keyHash) {
+        Snapshot<T> current = snapshot;
+        if (current.owners.length == 0) {
+            return null;
+        }
+
+        int index = Arrays.binarySearch(current.points, keyHash);
+        if (index < 0) {
+            index = -index - 1;
+            if (index == current.points.length) {
+                index = 0; // wrap around the ring
+            }
+        }
+        return (T) current.owners[index];
+    }
+
+    // Every node, in the order met walking the ring from the key's point: the
+    // owner first, then the nodes its keys fall to if it is unavailable
+    @SuppressWarnings("unchecked")
+    public List<T> getSuccessors(String key) {
+        Snapshot<T> current = snapshot;
+        List<T> successors = new ArrayList<>();
+        int total = current.owners.length;
+        if (total == 0) {
+            return successors;
+        }
+        int start = Arrays.binarySearch(current.points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i = 0; i < total && successors.size() < total / virtualNodes; i++) {
+            T owner = (T) current.owners[(start + i) % total];
+            if (!successors.contains(owner)) {
+                successors.add(owner);
+            }
+        }
+        return successors;
+    }
+
+    private void rebuild() {
+        int total = nodes.size() * virtualNodes;
+        long[] points = new long[total];
+        Object[] owners = new Object[total];
+
+        // Sort (point, node) pairs by point using an index permutation
+        long[] rawPoints = new long[total];
+        Integer[] order = new Integer[total];
+        int i = 0;
+        for (T node : nodes) {
+            String base = String.valueOf(node);
+            for (int v = 0; v < virtualNodes; v++) {
+                rawPoints[i] = hash(base + "#" + v);
+                order[i] = i;
+                i++;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(rawPoints[a], rawPoints[b]));
+
+        for (int j = 0; j < total; j++) {
+            int k = order[j];
+            points[j] = rawPoints[k];
+            owners[j] = nodes.get(k / virtualNodes);
+        }
+        snapshot = new Snapshot<>(points, owners);
+    }
+
+    // 64-bit FNV-1a followed by the MurmurHash3 finalizer for avalanche
+    public static long hash(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Snapshot<T> {
+        final long[] points;
+        final Object[] owners;
+
+        Snapshot(long[] points, Object[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Content-addressed cache of files already cut into Base64 chunks, so a file
+// sent again, or to several recipients, is neither re-read nor re-encoded.
+// Entries are stored by SHA-256 of the content; a path is mapped to its hash
+// through (path, size, mtime), so a modified file is read again while copies
+// of the same content share one entry.
+//
+// Two tiers, both LRU and bounded in bytes: encoded chunks on the heap, and
+// entries evicted from there spilled to memory-mapped files, where the page
+// cache keeps them warm. A hit on a spilled entry promotes it back.
+//
+// Configured from system properties:
+//   chat.filecache=off                  disable caching
+//   chat.filecache.heap_mb=64           encoded chunks kept on the heap
+//   chat.filecache.spill_mb=512         encoded chunks kept in mapped files
+//   chat.filecache.max_entry_mb=16      larger files are streamed, not cached
+public class FileChunkCache {
+    private static final int MAX_INDEX_ENTRIES = 4096;
+    private static final Log LOG = Log.get("filecache");
+
+    // One file's chunks, Base64 encoded and ready to go into a frame, with
+    // the CRC32C of each chunk's bytes
+    public static final class Entry {
+        private final String hash;
+        private final long[] checksums;
+        private final long fileSize;
+        private final int chunkSize;
+        private final int chunkCount;
+        private final long encodedBytes;
+        private volatile String[] chunks;        // heap tier
+        private volatile MappedByteBuffer mapped; // spill tier
+        private int[] offsets;                   // chunk i is [offsets[i], offsets[i + 1]) of mapped
+        private Path spillFile;
+
+        private Entry(String hash, long fileSize, int chunkSize, String[] chunks, long[] checksums) {
+            this.hash = hash;
+            this.checksums = checksums;
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunks.length;
+            this.chunks = chunks;
+            long bytes = 0;
+            for (String chunk : chunks) {
+                bytes += chunk.length();
+            }
+            this.encodedBytes = bytes;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        public String chunk(int index) {
+            String[] heap = chunks;
+            if (heap != null) {
+                return heap[index];
+            }
+            // Spilled since the caller got the entry; still valid until deleted
+            ByteBuffer view = mapped.duplicate();
+            byte[] bytes = new byte[offsets[index + 1] - offsets[index]];
+            view.position(offsets[index]);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+
+        // A complete file_chunk frame; transfer ids are UUIDs and the data is
+        // Base64, so nothing needs escaping
+        public String chunkFrame(String transferId, int index) {
+            return "{\"type\":\"file_chunk\",\"transfer_id\":\"" + transferId
+                    + "\",\"chunk_index\":" + index + ",\"crc32c\":" + checksums[index]
+                    + ",\"chunk_data\":\"" + chunk(index) + "\"}";
+        }
+    }
+
+    private final int chunkSize;
+    private final long maxHeapBytes;
+    private final long maxSpillBytes;
+    private final long maxEntryBytes;
+    private final Path spillDirectory;
+    private final List<Metrics.Gauge> gauges;
+
+    // Guarded by this
+    private final Map<String, Entry> heap = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Entry> spilled = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> index = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_INDEX_ENTRIES;
+        }
+    };
+    private long heapBytes;
+    private long spillBytes;
+
+    private static final Metrics.Counter HITS = Metrics.counter("chat_filecache_hits_total");
+    private static final Metrics.Counter MISSES = Metrics.counter("chat_filecache_misses_total");
+    private static final Metrics.Counter SPILLS = Metrics.counter("chat_filecache_spills_total");
+    private static final Metrics.Counter EVICTIONS = Metrics.counter("chat_filecache_evictions_total");
+
+    public FileChunkCache(int chunkSize, long maxHeapBytes, long maxSpillBytes, long maxEntryBytes)
+            throws IOException {
+        this.chunkSize = chunkSize;
+        this.maxHeapBytes = maxHeapBytes;
+        this.maxSpillBytes = maxSpillBytes;
+        // Offsets into a spill file are ints
+        this.maxEntryBytes = Math.min(maxEntryBytes, Integer.MAX_VALUE / 2);
+        this.spillDirectory = maxSpillBytes > 0 ? Files.createTempDirectory("chat-filecache") : null;
+        if (spillDirectory != null) {
+            spillDirectory.toFile().deleteOnExit();
+        }
+
+        gauges = Arrays.asList(
+                Metrics.gauge("chat_filecache_heap_bytes", this::getHeapBytes),
+                Metrics.gauge("chat_filecache_spill_bytes", this::getSpillBytes),
+                Metrics.gauge("chat_filecache_entries", this::getEntryCount));
+    }
+
+    // The cache described by the chat.filecache.* properties, or null when
+    // caching is switched off
+    public static FileChunkCache fromSystemProperties(int chunkSize) throws IOException {
+        if ("off".equalsIgnoreCase(System.getProperty("chat.filecache"))) {
+            return null;
+        }
+        return new FileChunkCache(chunkSize,
+                Long.getLong("chat.filecache.heap_mb", 64) << 20,
+                Long.getLong("chat.filecache.spill_mb", 512) << 20,
+                Long.getLong("chat.filecache.max_entry_mb", 16) << 20);
+    }
+
+    // The file's chunks, read and encoded now if not cached; null for files
+    // too large to cache, which the caller streams instead
+    public Entry get(File file) throws IOException {
+        long size = file.length();
+        if (size > maxEntryBytes) {
+            return null;
+        }
+        String key = file.getCanonicalPath() + '|' + size + '|' + file.lastModified();
+        synchronized (this) {
+            String hash = index.get(key);
+            Entry entry = hash != null ? lookup(hash) : null;
+            if (entry != null) {
+                HITS.increment();
+                return entry;
+            }
+        }
+
+        MISSES.increment();
+        Entry loaded = load(file);
+        synchronized (this) {
+            index.put(key, loaded.hash);
+            Entry existing = lookup(loaded.hash);
+            if (existing != null) {
+                return existing; // same content under another name, or a racing load
+            }
+            heap.put(loaded.hash, loaded);
+            heapBytes += loaded.encodedBytes;
+            evict();
+            return loaded;
+        }
+    }
+
+    private Entry lookup(String hash) {
+        Entry entry = heap.get(hash);
+        if (entry == null) {
+            entry = spilled.remove(hash);
+            if (entry != null) {
+                promote(entry);
+            }
+        }
+        return entry;
+    }
+
+    private Entry load(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        int chunkCount = (int) ((file.length() + chunkSize - 1) / chunkSize);
+        String[] chunks = new String[chunkCount];
+        long[] checksums = new long[chunkCount];
+        Base64.Encoder encoder = Base64.getEncoder();
+        long fileSize = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[chunkSize];
+            for (int i = 0; i < chunkCount; i++) {
+                int length = in.readNBytes(buffer, 0, chunkSize);
+                if (length == 0) {
+                    throw new IOException("File shrank while reading: " + file);
+                }
+                digest.update(buffer, 0, length);
+                checksums[i] = FileTransfer.checksum(buffer, length);
+                chunks[i] = encoder.encodeToString(length == chunkSize ? buffer : Arrays.copyOf(buffer, length));
+                fileSize += length;
+            }
+        }
+        return new Entry(FileTransfer.hex(digest.digest()), fileSize, chunkSize, chunks, checksums);
+    }
+
+    private void evict() {
+        Iterator<Entry> oldest = heap.values().iterator();
+        while (heapBytes > maxHeapBytes && oldest.hasNext()) {
+            Entry entry = oldest.next();
+            oldest.remove();
+            heapBytes -= entry.encodedBytes;
+            spill(entry);
+        }
+
+        Iterator<Entry> oldestSpilled = spilled.values().iterator();
+        while (spillBytes > maxSpillBytes && oldestSpilled.hasNext()) {
+            Entry entry = oldestSpilled.next();
+            oldestSpilled.remove();
+            spillBytes -= entry.encodedBytes;
+            deleteSpillFile(entry);
+            EVICTIONS.increment();
+        }
+    }
+
+    private void spill(Entry entry) {
+        if (spillDirectory == null || entry.encodedBytes > maxSpillBytes) {
+            EVICTIONS.increment();
+            return;
+        }
+        try {
+            Path path = Files.createTempFile(spillDirectory, entry.hash.substring(0, 16), ".chunks");
+            int[] offsets = new int[entry.chunkCount + 1];
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, entry.encodedBytes);
+                String[] chunks = entry.chunks;
+                for (int i = 0; i < chunks.length; i++) {
+                    offsets[i] = mapped.position();
+                    mapped.put(chunks[i].getBytes(StandardCharsets.ISO_8859_1));
+                }
+                offsets[chunks.length] = mapped.position();
+                entry.offsets = offsets;
+                entry.spillFile = path;
+                entry.mapped = mapped;
+            }
+            entry.chunks = null;
+            spilled.put(entry.hash, entry);
+            spillBytes += entry.encodedBytes;
+            SPILLS.increment();
+        } catch (IOException e) {
+            LOG.warn("Could not spill cached file {}: {}", entry.hash, e.getMessage());
+            EVICTIONS.increment();
+        }
+    }
+
+    private void promote(Entry entry) {
+        spillBytes -= entry.encodedBytes;
+        String[] chunks = new String[entry.chunkCount];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = entry.chunk(i);
+        }
+        entry.chunks = chunks;
+        deleteSpillFile(entry);
+        heap.put(entry.hash, entry);
+        heapBytes += entry.encodedBytes;
+        evict();
+    }
+
+    // The mapping stays readable for senders still holding the entry
+    private static void deleteSpillFile(Entry entry) {
+        try {
+            Files.deleteIfExists(entry.spillFile);
+        } catch (IOException e) {
+            LOG.warn("Could not delete spill file {}: {}", entry.spillFile, e.getMessage());
+        }
+    }
+
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    public synchronized long getSpillBytes() {
+        return spillBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return heap.size() + spilled.size();
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : spilled.values()) {
+            deleteSpillFile(entry);
+        }
+        heap.clear();
+        spilled.clear();
+        index.clear();
+        heapBytes = 0;
+        spillBytes = 0;
+    }
+
+    // Empties the cache and drops its gauges
+    public void close() {
+        clear();
+        for (Metrics.Gauge gauge : gauges) {
+            gauge.unregister();
+        }
+    }
+}
@@ -1,15 +1,25 @@
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32C;
 
+// A file being received chunk by chunk. Chunks carry a CRC32C of their bytes
+// and one that does not match is not kept, so it shows up in missingChunks()
+// for the sender to retransmit; the whole file is checked against the
+// sender's SHA-256 when it is assembled.
 public class FileTransfer {
     private final String fileName;
     private final long fileSize;
     private final int totalChunks;
     private final Map<Integer, byte[]> chunks = new HashMap<>();
     private final File outputFile;
+    private int corruptChunks;
 
     public FileTransfer(String fileName, long fileSize, int totalChunks) {
         this.fileName = fileName;
@@ -18,8 +28,35 @@ public class FileTransfer {
         this.outputFile = new File("received_" + fileName);
     }
 
+    // CRC32C of a chunk, as carried in chunk frames; the JDK implementation
+    // uses the CPU's CRC32C instructions where there are any
+    public static long checksum(byte[] data, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+
+    public static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
     public void addChunk(int index, byte[] data) {
+        addChunk(index, data, -1);
+    }
+
+    // False if the chunk is out of range or fails its checksum; a negative
+    // checksum means the sender did not send one
+    public boolean addChunk(int index, byte[] data, long checksum) {
+        if (index < 0 || index >= totalChunks || checksum >= 0 && checksum(data, data.length) != checksum) {
+            corruptChunks++;
+            return false;
+        }
         chunks.put(index, data);
+        return true;
     }
 
     public int getProgress() {
@@ -30,6 +67,21 @@ public class FileTransfer {
         return chunks.size() == totalChunks;
     }
 
+    public int getCorruptChunks() {
+        return corruptChunks;
+    }
+
+    // Indices still to come or received corrupt, at most limit of them
+    public List<Integer> missingChunks(int limit) {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < totalChunks && missing.size() < limit; i++) {
+            if (!chunks.containsKey(i)) {
+                missing.add(i);
+            }
+        }
+        return missing;
+    }
+
     public String getFileName() {
         return outputFile.getName();
     }
@@ -39,18 +91,33 @@ public class FileTransfer {
     }
 
     public void assembleFile() throws IOException {
+        assembleFile(null);
+    }
+
+    // Writes the file, checking it against expectedSha256 (hex) unless null;
+    // on a mismatch the file is deleted
+    public void assembleFile(String expectedSha256) throws IOException {
         if (!isComplete()) {
             throw new IllegalStateException("Cannot assemble incomplete file");
         }
 
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
         try (FileOutputStream fos = new FileOutputStream(outputFile)) {
             for (int i = 0; i < totalChunks; i++) {
                 byte[] chunk = chunks.get(i);
-                if (chunk != null) {
-                    fos.write(chunk);
-                }
+                digest.update(chunk);
+                fos.write(chunk);
             }
         }
+        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(hex(digest.digest()))) {
+            cleanup();
+            throw new IOException("SHA-256 of " + fileName + " does not match the sender's");
+        }
     }
 
     public void cleanup() {
@@ -58,4 +125,4 @@ public class FileTransfer {
             System.err.println("Warning: Could not delete file " + outputFile.getName());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,224 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hashed timing wheel (Varghese & Lauck): one thread advancing over a ring of
+// buckets every tick, with timeouts hashed into buckets by deadline. Adding
+// and cancelling are O(1) queue operations, and each tick only touches the
+// timeouts in one bucket, so the cost per tick stays flat with the number of
+// pending timeouts. Deadlines are rounded up to the tick.
+//
+// Tasks run on the wheel thread and must not block; hand real work to an
+// executor.
+public class HashedTimingWheel {
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+    private static final Log LOG = Log.get("timer");
+
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedTimingWheel wheel;
+        private final Runnable task;
+        private final long deadline; // relative to the wheel's start time
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+        private Bucket bucket;
+        private volatile int state = PENDING;
+
+        private Timeout(HashedTimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // False when the task already ran or was cancelled before
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOG.error("Timer task failed", t);
+            }
+        }
+    }
+
+    // Doubly linked so cancelled timeouts unlink in O(1); wheel thread only
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        void expireTimeouts(long deadline, AtomicLong pendingCount) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0) {
+                    Timeout next = remove(timeout);
+                    pendingCount.decrementAndGet();
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    }
+                    timeout = next;
+                } else if (timeout.state == Timeout.CANCELLED) {
+                    timeout = remove(timeout);
+                    pendingCount.decrementAndGet();
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean isRunning = true;
+    private long tick;
+
+    // ticksPerWheel is rounded up to a power of two
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this.tickNanos = Math.max(1_000_000L, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + unit.toNanos(delay) - startTime);
+        pendingCount.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public void stop() {
+        isRunning = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (isRunning) {
+            long deadline = waitForNextTick();
+            if (deadline < 0) {
+                break;
+            }
+            removeCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expireTimeouts(deadline, pendingCount);
+            tick++;
+        }
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long now = System.nanoTime() - startTime;
+            long sleepNanos = deadline - now;
+            if (sleepNanos <= 0) {
+                return now;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (!isRunning) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state == Timeout.CANCELLED) {
+                pendingCount.decrementAndGet();
+                continue;
+            }
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // Deadlines already in the past fire on the current tick
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            Bucket bucket = timeout.bucket;
+            if (bucket != null) {
+                bucket.remove(timeout);
+                pendingCount.decrementAndGet();
+            }
+        }
+    }
+}
@@ -1,105 +1,239 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 public class LoadBalancer {
-    private ServerSocket loadBalancerSocket;
+    // How a client connection is mapped to a backend server
+    public enum RoutingMode {
+        ROUND_ROBIN,
+        STICKY_ADDRESS,   // hash the client's source address
+        STICKY_NICKNAME   // hash the nickname from the first set_nickname or resume frame
+    }
+
+    private static final int MAX_ROUTING_FRAME = 8192;
+    private static final Log LOG = Log.get("lb");
+    // A client must send its first line within this long in sticky nickname
+    // mode, and a backend must accept a connection within this long
+    private static final int ROUTING_TIMEOUT_MS = Integer.getInteger("lb.routing_timeout_ms", 10_000);
+    private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("lb.connect_timeout_ms", 3_000);
+
+    private static final Metrics.Counter ROUTE_FAILURES = Metrics.counter("lb_route_failures_total");
+    private static final LatencyHistogram BACKEND_CONNECT = Metrics.histogram("lb_backend_connect_ns");
+
+    private ConnectionListener listener;
     private List<String> serverHosts;
     private List<Integer> serverPorts;
     private AtomicInteger currentServer = new AtomicInteger(0);
+    private final RoutingMode routingMode;
+    private final ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+    private final ExecutorService connectPool = Executors.newCachedThreadPool();
+    private final SocketProfile backendProfile = SocketProfile.forEndpoint("lb.backend", SocketProfile.PROXY);
+    private ByteRelay relay;
 
     public LoadBalancer(int lbPort, List<String> hosts, List<Integer> ports) {
-        this.serverHosts = hosts;
-        this.serverPorts = ports;
+        this(lbPort, hosts, ports, RoutingMode.ROUND_ROBIN);
+    }
+
+    public LoadBalancer(int lbPort, List<String> hosts, List<Integer> ports, RoutingMode routingMode) {
+        this.serverHosts = new CopyOnWriteArrayList<>(hosts);
+        this.serverPorts = new CopyOnWriteArrayList<>(ports);
+        this.routingMode = routingMode;
+        for (int i = 0; i < hosts.size(); i++) {
+            ring.add(hosts.get(i) + ":" + ports.get(i));
+        }
 
         try {
-            loadBalancerSocket = new ServerSocket(lbPort);
-            System.out.println("Load balancer started on port " + lbPort);
+            listener = new ConnectionListener("lb", lbPort, SocketProfile.PROXY);
+            relay = new ByteRelay("lb", Runtime.getRuntime().availableProcessors());
+            listener.setActiveConnections(relay::getActivePairs);
+            Metrics.gauge("lb_active_pairs", relay::getActivePairs);
+            Metrics.gauge("lb_backends", () -> serverHosts.size());
+            Metrics.exportDefaults();
+            LOG.info("Load balancer started on port {} ({})", lbPort, routingMode);
         } catch (IOException e) {
-            System.err.println("Could not start load balancer");
-            e.printStackTrace();
+            LOG.error("Could not start load balancer", e);
+        }
+    }
+
+    public synchronized void addServer(String host, int port) {
+        serverHosts.add(host);
+        serverPorts.add(port);
+        ring.add(host + ":" + port);
+    }
+
+    public synchronized void removeServer(String host, int port) {
+        for (int i = 0; i < serverHosts.size(); i++) {
+            if (serverHosts.get(i).equals(host) && serverPorts.get(i) == port) {
+                serverHosts.remove(i);
+                serverPorts.remove(i);
+                break;
+            }
         }
+        ring.remove(host + ":" + port);
     }
 
     public void start() {
-        while (true) {
-            try {
-                Socket clientSocket = loadBalancerSocket.accept();
-                System.out.println("New client connected to load balancer");
+        listener.serve(clientChannel -> {
+            LOG.info("New client connected to load balancer");
 
-                // Round-robin selection
-                int serverIndex = currentServer.getAndIncrement() % serverHosts.size();
-                String host = serverHosts.get(serverIndex);
-                int port = serverPorts.get(serverIndex);
+            // Backend selection and connect run on a short-lived pool
+            // task; the relay itself needs no thread per connection
+            connectPool.execute(new LoadBalancerHandler(clientChannel));
+        });
+    }
 
-                // Connect to selected server
-                Socket serverSocket = new Socket(host, port);
+    // A backend refusing connections (stopped, or draining before removal)
+    // or not answering within CONNECT_TIMEOUT_MS is skipped in favour of the
+    // next one
+    private SocketChannel connectRoundRobin() throws IOException {
+        IOException failure = new IOException("No backend servers available");
+        for (int attempt = 0; attempt < serverHosts.size(); attempt++) {
+            String host;
+            int port;
+            synchronized (this) {
+                if (serverHosts.isEmpty()) {
+                    break;
+                }
+                int serverIndex = Math.floorMod(currentServer.getAndIncrement(), serverHosts.size());
+                host = serverHosts.get(serverIndex);
+                port = serverPorts.get(serverIndex);
+            }
+            try {
+                return backendProfile.open(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            } catch (ConnectException | SocketTimeoutException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
 
-                // Start two threads to handle bidirectional communication
-                new Thread(new LoadBalancerHandler(clientSocket, serverSocket)).start();
+    // The key's own backend if it is up, otherwise the next one along the
+    // ring, so every key still fails over to the same place
+    private SocketChannel connectSticky(String key) throws IOException {
+        IOException failure = new IOException("No backend servers available");
+        for (String backend : ring.getSuccessors(key)) {
+            int separator = backend.lastIndexOf(':');
+            try {
+                return backendProfile.open(new InetSocketAddress(backend.substring(0, separator),
+                        Integer.parseInt(backend.substring(separator + 1))), CONNECT_TIMEOUT_MS);
+            } catch (ConnectException | SocketTimeoutException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
 
-            } catch (IOException e) {
-                System.err.println("Error in load balancer");
-                e.printStackTrace();
+    private static String nicknameFrom(String firstLine) {
+        try {
+            JSONObject json = new JSONObject(firstLine);
+            // A resuming client must get back to the node holding its session
+            String type = json.optString("type", "");
+            if (type.equals("set_nickname") || type.equals("resume")) {
+                return json.optString("nickname", null);
             }
+        } catch (JSONException e) {
+            // Not a chat frame; fall back to the source address
         }
+        return null;
     }
 
-    private static class LoadBalancerHandler implements Runnable {
+    // Reads until the first newline; the returned buffer (in read mode) holds
+    // every byte consumed so far so nothing is lost when relaying starts.
+    // Gives up with SocketTimeoutException once ROUTING_TIMEOUT_MS pass
+    // without a complete line, so a silent client cannot hold a thread.
+    private static ByteBuffer readFirstLine(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_ROUTING_FRAME);
+        Socket socket = channel.socket();
+        long deadline = System.nanoTime() + ROUTING_TIMEOUT_MS * 1_000_000L;
+        int scanned = 0;
+        while (buffer.hasRemaining()) {
+            long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+            if (remainingMs <= 0) {
+                throw new SocketTimeoutException("No routing frame within " + ROUTING_TIMEOUT_MS + " ms");
+            }
+            // The channel ignores SO_TIMEOUT, its socket's stream does not
+            socket.setSoTimeout((int) remainingMs);
+            int read = socket.getInputStream().read(buffer.array(), buffer.position(), buffer.remaining());
+            if (read < 0) {
+                break;
+            }
+            buffer.position(buffer.position() + read);
+            for (; scanned < buffer.position(); scanned++) {
+                if (buffer.get(scanned) == '\n') {
+                    buffer.flip();
+                    return buffer;
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
 
-        private Socket clientSocket;
-        private Socket serverSocket;
+    private static String lineOf(ByteBuffer buffer) {
+        int end = 0;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+        return new String(buffer.array(), 0, end, StandardCharsets.UTF_8).trim();
+    }
 
-        public LoadBalancerHandler(Socket clientSocket, Socket serverSocket) {
-            this.clientSocket = clientSocket;
-            this.serverSocket = serverSocket;
+    private class LoadBalancerHandler implements Runnable {
+
+        private final SocketChannel clientChannel;
+
+        public LoadBalancerHandler(SocketChannel clientChannel) {
+            this.clientChannel = clientChannel;
         }
 
         @Override
         public void run() {
-            try (
-                    BufferedReader clientIn = new BufferedReader(
-                            new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter clientOut = new PrintWriter(
-                            clientSocket.getOutputStream(), true);
-                    BufferedReader serverIn = new BufferedReader(
-                            new InputStreamReader(serverSocket.getInputStream()));
-                    PrintWriter serverOut = new PrintWriter(
-                            serverSocket.getOutputStream(), true)
-            ) {
-                // Client to server
-                new Thread(() -> {
-                    String line;
-                    try {
-                        while ((line = clientIn.readLine()) != null) {
-                            serverOut.println(line);
+            SocketChannel serverChannel = null;
+            try {
+                long start = System.nanoTime();
+                ByteBuffer preamble = null;
+                String addressKey = ((InetSocketAddress) clientChannel.getRemoteAddress())
+                        .getAddress().getHostAddress();
+                switch (routingMode) {
+                    case STICKY_NICKNAME:
+                        preamble = readFirstLine(clientChannel);
+                        if (!preamble.hasRemaining()) {
+                            clientChannel.close();
+                            return;
                         }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }).start();
-
-                // Server to client
-                String line;
-                while ((line = serverIn.readLine()) != null) {
-                    clientOut.println(line);
+                        String nickname = nicknameFrom(lineOf(preamble));
+                        serverChannel = connectSticky(nickname != null ? "nick:" + nickname : addressKey);
+                        break;
+                    case STICKY_ADDRESS:
+                        serverChannel = connectSticky(addressKey);
+                        break;
+                    default:
+                        serverChannel = connectRoundRobin();
                 }
 
+                BACKEND_CONNECT.recordSince(start);
+                relay.relay(clientChannel, serverChannel, preamble);
+
             } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
+                ROUTE_FAILURES.increment();
+                LOG.warn("Load balancer could not route client: {}", e.getMessage());
                 try {
-                    clientSocket.close();
-                    serverSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    clientChannel.close();
+                    if (serverChannel != null) serverChannel.close();
+                } catch (IOException ignored) {
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
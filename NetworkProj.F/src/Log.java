@@ -0,0 +1,238 @@
+import java.io.BufferedOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous logging for the server side. Callers claim a slot in a
+// preallocated ring buffer and return; a background thread formats the
+// events and writes them, WARN and ERROR to stderr, the rest to stdout. When
+// the ring is full the event is dropped and counted rather than making the
+// caller wait, so logging never blocks an I/O thread.
+//
+// Messages use {} placeholders filled on the writer thread; a Throwable
+// passed as the last argument is printed with its stack trace:
+//   LOG.info("New client connected: {}", address);
+//   LOG.error("Could not start server on port {}", port, e);
+//
+// Configured from system properties:
+//   chat.log.level=info             default threshold (debug|info|warn|error|off)
+//   chat.log.<name>.level=debug     threshold for one logger
+//   chat.log.<name>.sample=100      keep 1 in 100 DEBUG/INFO events of a logger
+//   chat.log.buffer=8192            ring slots, rounded up to a power of two
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    // One ring entry; fields are written by the claiming thread and read by
+    // the writer once sequence says the slot is published
+    private static final class Slot {
+        volatile long sequence = -1;
+        long timestamp;
+        Level level;
+        Log log;
+        String thread;
+        String format;
+        Object[] args;
+
+        void clear() {
+            log = null;
+            thread = null;
+            format = null;
+            args = null;
+        }
+    }
+
+    private static final Map<String, Log> loggers = new ConcurrentHashMap<>();
+    private static final Slot[] ring;
+    private static final int mask;
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static volatile long flushed;
+    private static final Thread writer;
+    private static volatile boolean writerParked;
+
+    private static final Metrics.Counter EVENTS = Metrics.counter("log_events_total");
+    private static final Metrics.Counter DROPPED = Metrics.counter("log_dropped_total");
+    private static final Metrics.Counter SAMPLED_OUT = Metrics.counter("log_sampled_out_total");
+
+    static {
+        int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.log.buffer", 8192) - 1)) << 1;
+        ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+        }
+        mask = capacity - 1;
+        Metrics.gauge("log_buffer_used", () -> claimed.get() - consumed);
+
+        writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::shutdown, "log-shutdown"));
+    }
+
+    private final String name;
+    private final Level threshold;
+    private final int sampleEvery;
+    private final AtomicLong sampleCount = new AtomicLong();
+
+    private Log(String name) {
+        this.name = name;
+        String level = System.getProperty("chat.log." + name + ".level", System.getProperty("chat.log.level", "info"));
+        Level parsed;
+        try {
+            parsed = Level.valueOf(level.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            parsed = null;
+        }
+        this.threshold = parsed != null ? parsed : Level.INFO;
+        this.sampleEvery = Math.max(1, Integer.getInteger("chat.log." + name + ".sample", 1));
+        if (parsed == null) {
+            warn("Unknown log level {}, using INFO", level);
+        }
+    }
+
+    public static Log get(String name) {
+        return loggers.computeIfAbsent(name, Log::new);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0 && level != Level.OFF;
+    }
+
+    public void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    public void log(Level level, String format, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (sampleEvery > 1 && level.compareTo(Level.WARN) < 0
+                && sampleCount.getAndIncrement() % sampleEvery != 0) {
+            SAMPLED_OUT.increment();
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                DROPPED.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = ring[(int) (sequence & mask)];
+        slot.timestamp = System.currentTimeMillis();
+        slot.level = level;
+        slot.log = this;
+        slot.thread = Thread.currentThread().getName();
+        slot.format = format;
+        slot.args = args;
+        slot.sequence = sequence; // publishes the slot to the writer
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // Waits up to timeout for everything logged so far to be written
+    public static void flush(long timeout, TimeUnit unit) {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (flushed < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void shutdown() {
+        flush(1, TimeUnit.SECONDS);
+    }
+
+    private static void drain() {
+        // Batched on top of the standard streams, flushed whenever the ring
+        // runs empty
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        PrintStream err = new PrintStream(new BufferedOutputStream(System.err, 1 << 16), false);
+        StringBuilder line = new StringBuilder(256);
+        long next = 0;
+        boolean pending = false; // written but not flushed
+        while (true) {
+            Slot slot = ring[(int) (next & mask)];
+            if (slot.sequence != next) {
+                if (pending) {
+                    out.flush();
+                    err.flush();
+                    pending = false;
+                    flushed = next;
+                }
+                // Idle, or a producer between claiming and publishing; a
+                // producer publishing after the re-check sees writerParked
+                // and unparks
+                writerParked = true;
+                if (slot.sequence != next) {
+                    LockSupport.park();
+                }
+                writerParked = false;
+                continue;
+            }
+
+            line.setLength(0);
+            Throwable thrown = format(slot, line);
+            PrintStream stream = slot.level.compareTo(Level.WARN) >= 0 ? err : out;
+            stream.println(line);
+            if (thrown != null) {
+                StringWriter trace = new StringWriter();
+                thrown.printStackTrace(new PrintWriter(trace));
+                stream.print(trace);
+            }
+            slot.clear();
+            EVENTS.increment();
+            pending = true;
+            consumed = ++next;
+        }
+    }
+
+    // timestamp level [thread] logger: message; returns a trailing Throwable
+    private static Throwable format(Slot slot, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(slot.timestamp)).append(' ')
+                .append(slot.level).append(slot.level.name().length() == 4 ? "  " : " ")
+                .append('[').append(slot.thread).append("] ")
+                .append(slot.log.name).append(": ");
+
+        Object[] args = slot.args;
+        Throwable thrown = args.length > 0 && args[args.length - 1] instanceof Throwable
+                ? (Throwable) args[args.length - 1] : null;
+        String format = slot.format;
+        int arg = 0;
+        int from = 0;
+        int at;
+        int values = thrown != null ? args.length - 1 : args.length;
+        while ((at = format.indexOf("{}", from)) >= 0 && arg < values) {
+            line.append(format, from, at).append(args[arg++]);
+            from = at + 2;
+        }
+        line.append(format, from, format.length());
+        return thrown;
+    }
+}
@@ -17,7 +17,11 @@ public class Main {
 
         ChatServer server = new ChatServer(8081, 10); // Try ports 8080-8089
         if (server.isRunning()) {
-            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            // Drain first so clients move to other nodes gradually
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.drain();
+                server.stop();
+            }));
             server.start();
         } else {
             System.err.println("Failed to start server");
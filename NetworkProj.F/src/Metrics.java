@@ -0,0 +1,278 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+// Process-wide metrics registry: counters, gauges and latency histograms.
+// Call sites look a metric up once and keep the reference, so the hot path
+// is a LongAdder increment or a LatencyHistogram.record().
+//
+// Counters are shared by every instance in the JVM, and so are gauges: when
+// several instances register one gauge name (servers sharing a JVM, as with
+// LoadGenerator --embed) the reported value is their sum. An instance
+// unregisters its gauges when it stops, so the registry neither reports nor
+// keeps alive instances that are gone.
+//
+// Everything is exported as one JMX MBean (chat:type=Metrics) and, when the
+// chat.metrics.port system property is set, as plain text on a loopback
+// HTTP endpoint.
+public final class Metrics {
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    // One registered supplier of a gauge; see the note above
+    public static final class Gauge {
+        private final String name;
+        private final LongSupplier supplier;
+
+        private Gauge(String name, LongSupplier supplier) {
+            this.name = name;
+            this.supplier = supplier;
+        }
+
+        public void unregister() {
+            gauges.computeIfPresent(name, (n, suppliers) -> {
+                suppliers.remove(supplier);
+                return suppliers.isEmpty() ? null : suppliers;
+            });
+        }
+    }
+
+    // Per-message-type processing timers under one prefix, resolved when
+    // created so that looking one up allocates nothing; unknown types share
+    // one timer so a misbehaving client cannot create unbounded metric names
+    public static final class MessageTimers {
+        private final Map<String, LatencyHistogram> byType = new HashMap<>();
+        private final LatencyHistogram other;
+
+        private MessageTimers(String prefix) {
+            for (String type : KNOWN_MESSAGE_TYPES) {
+                byType.put(type, histogram(prefix + type));
+            }
+            other = histogram(prefix + "other");
+        }
+
+        public LatencyHistogram get(String type) {
+            return byType.getOrDefault(type, other);
+        }
+    }
+
+    private static final Map<String, List<LongSupplier>> gauges = new ConcurrentSkipListMap<>();
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private static final Map<String, MessageTimers> messageTimers = new ConcurrentHashMap<>();
+    private static final AtomicBoolean exported = new AtomicBoolean();
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static final Set<String> KNOWN_MESSAGE_TYPES = new HashSet<>(Arrays.asList(
+            "set_nickname", "public_message", "private_message", "file_transfer",
+            "file_transfer_info", "file_chunk", "file_transfer_response", "ping", "pong",
+            "resume", "quit", "file_upload_start", "file_upload_chunk", "file_upload_end",
+            "get_roster", "file_transfer_nack"));
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public static Gauge gauge(String name, LongSupplier supplier) {
+        gauges.compute(name, (n, suppliers) -> {
+            List<LongSupplier> list = suppliers != null ? suppliers : new CopyOnWriteArrayList<>();
+            list.add(supplier);
+            return list;
+        });
+        return new Gauge(name, supplier);
+    }
+
+    private static long gaugeValue(List<LongSupplier> suppliers) {
+        long sum = 0;
+        for (LongSupplier supplier : suppliers) {
+            sum += supplier.getAsLong();
+        }
+        return sum;
+    }
+
+    // Call sites keep the returned timers, typically in a static field
+    public static MessageTimers messageTimers(String prefix) {
+        return messageTimers.computeIfAbsent(prefix, MessageTimers::new);
+    }
+
+    public static String renderText() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, List<LongSupplier>> entry : gauges.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(gaugeValue(entry.getValue())).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram h = entry.getValue();
+            sb.append(name).append("_count ").append(h.getCount()).append('\n');
+            sb.append(name).append("_mean_ns ").append((long) h.getMean()).append('\n');
+            sb.append(name).append("_max_ns ").append(h.getMax()).append('\n');
+            for (String quantile : QUANTILES) {
+                sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(h.getPercentile(Double.parseDouble(quantile) * 100)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Registers the JMX bean and, if configured, the text endpoint. Safe to
+    // call from every server constructor; only the first call does anything.
+    public static void exportDefaults() {
+        if (!exported.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new MetricsMBean(), new ObjectName("chat:type=Metrics"));
+        } catch (JMException e) {
+            Log.get("metrics").warn("Could not register metrics MBean: {}", e.getMessage());
+        }
+
+        String port = System.getProperty("chat.metrics.port");
+        if (port != null) {
+            try {
+                startScrapeEndpoint(Integer.parseInt(port));
+            } catch (IOException | NumberFormatException e) {
+                Log.get("metrics").warn("Could not start metrics endpoint on port {}: {}", port, e.getMessage());
+            }
+        }
+    }
+
+    // Minimal HTTP/1.0 responder on loopback; any request gets the text dump
+    public static int startScrapeEndpoint(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                        // skip request line and headers
+                    }
+                    byte[] body = renderText().getBytes(StandardCharsets.UTF_8);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\n"
+                            + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                    out.flush();
+                } catch (IOException e) {
+                    // scraper went away; keep serving
+                }
+            }
+        }, "metrics-endpoint");
+        thread.setDaemon(true);
+        thread.start();
+        Log.get("metrics").info("Metrics endpoint listening on 127.0.0.1:{}", server.getLocalPort());
+        return server.getLocalPort();
+    }
+
+    // Exposes every metric as a read-only long attribute; histograms appear
+    // as <name>.count, <name>.p50, <name>.p99, <name>.max
+    private static final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Counter counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.get();
+            }
+            List<LongSupplier> gauge = gauges.get(attribute);
+            if (gauge != null) {
+                return gaugeValue(gauge);
+            }
+            int dot = attribute.lastIndexOf('.');
+            LatencyHistogram h = dot > 0 ? histograms.get(attribute.substring(0, dot)) : null;
+            if (h != null) {
+                switch (attribute.substring(dot + 1)) {
+                    case "count": return h.getCount();
+                    case "p50": return h.getPercentile(50);
+                    case "p99": return h.getPercentile(99);
+                    case "max": return h.getMax();
+                    default: break;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                try {
+                    list.add(new Attribute(name, getAttribute(name)));
+                } catch (AttributeNotFoundException ignored) {
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : counters.keySet()) {
+                attributes.add(longAttribute(name, "counter"));
+            }
+            for (String name : gauges.keySet()) {
+                attributes.add(longAttribute(name, "gauge"));
+            }
+            for (String name : histograms.keySet()) {
+                for (String suffix : new String[]{"count", "p50", "p99", "max"}) {
+                    attributes.add(longAttribute(name + "." + suffix, "latency histogram (ns)"));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        private static MBeanAttributeInfo longAttribute(String name, String description) {
+            return new MBeanAttributeInfo(name, "long", description, true, false, false);
+        }
+    }
+}
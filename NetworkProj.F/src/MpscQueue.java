@@ -0,0 +1,52 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+// Unbounded lock-free queue for many producers and a single consumer
+// (Vyukov's non-intrusive MPSC queue). A producer swaps itself in as the
+// tail with one atomic exchange and then links the previous tail to it; the
+// consumer follows the links from a stub node without any atomics. Between
+// the exchange and the link a producer's element is not yet visible, so
+// poll() may briefly return null while the queue is not empty; callers that
+// care about that are woken again by the producer anyway.
+public final class MpscQueue<E> {
+    private static final class Node<E> {
+        volatile Node<E> next;
+        E value;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<E>> tail;
+    private Node<E> head; // consumer only; always the stub
+
+    public MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    // Any thread
+    public void offer(E value) {
+        Node<E> node = new Node<>(value);
+        Node<E> previous = tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    // Consumer thread only; null when empty
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        E value = next.value;
+        next.value = null; // next becomes the stub
+        head = next;
+        return value;
+    }
+
+    // Consumer thread only
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+}
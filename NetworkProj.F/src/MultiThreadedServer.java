@@ -6,6 +6,7 @@ import java.net.*;
 import java.util.concurrent.*;
 
 public class MultiThreadedServer {
+    private static final Log LOG = Log.get("mtserver");
     private ServerSocket serverSocket;
     private ExecutorService threadPool;
 
@@ -13,10 +14,9 @@ public class MultiThreadedServer {
         try {
             serverSocket = new ServerSocket(port);
             threadPool = Executors.newCachedThreadPool();
-            System.out.println("Multi-threaded server started on port " + port);
+            LOG.info("Multi-threaded server started on port {}", port);
         } catch (IOException e) {
-            System.err.println("Could not start server on port " + port);
-            e.printStackTrace();
+            LOG.error("Could not start server on port {}", port, e);
         }
     }
 
@@ -24,14 +24,14 @@ public class MultiThreadedServer {
         while (true) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
+                SocketProfile.forEndpoint("mtserver", SocketProfile.INTERACTIVE).apply(clientSocket);
+                LOG.info("New client connected: {}", clientSocket.getInetAddress());
 
                 // Handle client connection in a new thread
                 threadPool.execute(new ClientHandler(clientSocket));
 
             } catch (IOException e) {
-                System.err.println("Error accepting client connection");
-                e.printStackTrace();
+                LOG.error("Error accepting client connection", e);
             }
         }
     }
@@ -51,7 +51,7 @@ public class MultiThreadedServer {
             ) {
                 String inputLine;
                 while ((inputLine = in.readLine()) != null) {
-                    System.out.println("Received from client " + clientSocket.getInetAddress() + ": " + inputLine);
+                    LOG.debug("Received from client {}: {}", clientSocket.getInetAddress(), inputLine);
 
                     // Parse JSON message
                     try {
@@ -63,13 +63,12 @@ public class MultiThreadedServer {
                     }
                 }
             } catch (IOException e) {
-                System.err.println("Error handling client connection");
-                e.printStackTrace();
+                LOG.error("Error handling client connection", e);
             } finally {
                 try {
                     clientSocket.close();
                 } catch (IOException e) {
-                    System.err.println("Error closing client socket");
+                    LOG.warn("Error closing client socket");
                 }
             }
         }
@@ -81,7 +80,7 @@ public class MultiThreadedServer {
                 response.put("received_at", System.currentTimeMillis());
                 response.put("original_message", message);
             } catch (JSONException e) {
-                e.printStackTrace();
+                LOG.error("Could not build response", e);
             }
             return response.toString();
         }
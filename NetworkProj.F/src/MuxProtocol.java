@@ -0,0 +1,58 @@
+// Framing for carrying many client sessions over one proxy-to-server link.
+// The link starts with a single JSON hello line; after that every line is
+// one frame whose first character is the opcode and which is followed by the
+// decimal stream id:
+//   O<id>            a client session opened
+//   C<id>            a client session closed (either direction)
+//   D<id> <payload>  one protocol line for that session
+//   B<id> <payload>  server to proxy only: a broadcast the proxy delivers to
+//                    the sessions on that link except <id> (0 excludes
+//                    nobody). Sent on every link whose hello asked for
+//                    edge_fanout.
+public final class MuxProtocol {
+    public static final String TYPE_HELLO = "mux_hello";
+    public static final char OPEN = 'O';
+    public static final char CLOSE = 'C';
+    public static final char DATA = 'D';
+    public static final char BROADCAST = 'B';
+
+    private MuxProtocol() {
+    }
+
+    public static String hello(String proxyId, boolean edgeFanout) {
+        return "{\"type\":\"" + TYPE_HELLO + "\",\"proxy_id\":\"" + proxyId
+                + "\",\"edge_fanout\":" + edgeFanout + "}";
+    }
+
+    public static String open(int streamId) {
+        return OPEN + Integer.toString(streamId);
+    }
+
+    public static String close(int streamId) {
+        return CLOSE + Integer.toString(streamId);
+    }
+
+    public static String data(int streamId, String payload) {
+        return new StringBuilder(payload.length() + 12)
+                .append(DATA).append(streamId).append(' ').append(payload).toString();
+    }
+
+    public static String broadcast(int excludeStreamId, String payload) {
+        return new StringBuilder(payload.length() + 12)
+                .append(BROADCAST).append(excludeStreamId).append(' ').append(payload).toString();
+    }
+
+    public static char opcode(String frame) {
+        return frame.isEmpty() ? 0 : frame.charAt(0);
+    }
+
+    public static int streamId(String frame) {
+        int end = frame.indexOf(' ');
+        return Integer.parseInt(end < 0 ? frame.substring(1) : frame.substring(1, end));
+    }
+
+    public static String payload(String frame) {
+        int start = frame.indexOf(' ');
+        return start < 0 ? "" : frame.substring(start + 1);
+    }
+}
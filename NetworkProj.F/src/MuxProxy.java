@@ -0,0 +1,464 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Proxy side of upstream multiplexing. Downstream client connections are
+// served by one selector loop that splits their bytes into lines; every
+// line travels to the main server over a small pool of long-lived upstream
+// links tagged with the client's stream id (see MuxProtocol). Replies come
+// back on the same link and are queued to the owning client.
+//
+// Neither side is allowed to hold up the other or to grow without bound:
+//   - a client that does not read its replies is closed once more than
+//     proxy.session.max_queued_kb (default 1024) waits for it
+//   - frames for the server are queued to a writer thread of the link, so a
+//     stalled link never blocks the selector loop or the acceptor; while more
+//     than proxy.upstream.max_queued_kb (default 4096) waits on a link, the
+//     loop stops reading from that link's clients, and resumes at half that
+public class MuxProxy {
+    private static final Log LOG = Log.get("mux");
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_SESSION_QUEUED = Integer.getInteger("proxy.session.max_queued_kb", 1024) * 1024L;
+    private static final long MAX_UPSTREAM_QUEUED = Integer.getInteger("proxy.upstream.max_queued_kb", 4096) * 1024L;
+
+    private static final Metrics.Counter SLOW_CLIENTS_CLOSED = Metrics.counter("proxy_slow_clients_closed_total");
+
+    private final String serverHost;
+    private final int serverPort;
+    private final Upstream[] upstreams;
+    private final Selector selector;
+    private final Queue<Session> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Session> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<Session> pendingResumes = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+    private final String proxyId = UUID.randomUUID().toString();
+    private final boolean edgeFanout;
+    private volatile boolean isRunning = true;
+
+    public MuxProxy(String serverHost, int serverPort, int upstreamConnections) throws IOException {
+        this(serverHost, serverPort, upstreamConnections, true);
+    }
+
+    // With edgeFanout the server sends each broadcast once per upstream link
+    // and the proxy copies it to the clients on that link
+    public MuxProxy(String serverHost, int serverPort, int upstreamConnections, boolean edgeFanout)
+            throws IOException {
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.edgeFanout = edgeFanout;
+        this.selector = Selector.open();
+        this.upstreams = new Upstream[upstreamConnections];
+        for (int i = 0; i < upstreamConnections; i++) {
+            upstreams[i] = new Upstream(i);
+            upstreams[i].start();
+        }
+
+        Thread loop = new Thread(this::runLoop, "mux-proxy-downstream");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public void register(SocketChannel client) throws IOException {
+        client.configureBlocking(false);
+        int streamId = nextStreamId.incrementAndGet();
+        Upstream upstream = chooseUpstream(streamId);
+        if (upstream == null) {
+            client.close();
+            throw new IOException("No upstream link to " + serverHost + ":" + serverPort);
+        }
+        Session session = new Session(streamId, client, upstream);
+        sessions.put(streamId, session);
+        // OPEN must precede any DATA for the stream, so send it before the
+        // channel is registered for reads
+        session.upstream.send(MuxProtocol.open(streamId));
+        pendingRegistrations.add(session);
+        selector.wakeup();
+    }
+
+    // Spread sessions over the links, skipping any that are reconnecting
+    private Upstream chooseUpstream(int streamId) {
+        for (int i = 0; i < upstreams.length; i++) {
+            Upstream candidate = upstreams[(streamId + i) % upstreams.length];
+            if (candidate.isConnected()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    public void close() {
+        isRunning = false;
+        selector.wakeup();
+        for (Upstream upstream : upstreams) {
+            upstream.close();
+        }
+    }
+
+    private void runLoop() {
+        while (isRunning) {
+            try {
+                selector.select();
+
+                Session session;
+                while ((session = pendingRegistrations.poll()) != null) {
+                    session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+                    session.flush(); // replies that raced the registration
+                }
+                while ((session = pendingWrites.poll()) != null) {
+                    session.flush();
+                }
+                while ((session = pendingResumes.poll()) != null) {
+                    session.resumeReading();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Session target = (Session) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        target.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        target.flush();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Mux proxy loop error: {}", e.getMessage());
+            }
+        }
+    }
+
+    private final class Session {
+        final int streamId;
+        final SocketChannel channel;
+        final Upstream upstream;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        final AtomicLong queuedBytes = new AtomicLong();
+        SelectionKey key;
+        private boolean readPaused; // selector thread only
+        private volatile boolean closed;
+
+        Session(int streamId, SocketChannel channel, Upstream upstream) {
+            this.streamId = streamId;
+            this.channel = channel;
+            this.upstream = upstream;
+        }
+
+        void read() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close(true);
+                    return;
+                }
+                readBuffer.flip();
+                byte[] bytes = readBuffer.array();
+                int start = 0;
+                for (int i = 0; i < readBuffer.limit(); i++) {
+                    if (bytes[i] == '\n') {
+                        partialLine.write(bytes, start, i - start);
+                        forwardLine();
+                        start = i + 1;
+                    }
+                }
+                partialLine.write(bytes, start, readBuffer.limit() - start);
+                readBuffer.clear();
+                if (partialLine.size() > MAX_LINE_LENGTH) {
+                    close(true);
+                } else if (upstream.isBacklogged()) {
+                    pauseReading();
+                }
+            } catch (IOException e) {
+                close(true);
+            }
+        }
+
+        // Until the link's writer catches up
+        private void pauseReading() {
+            readPaused = true;
+            updateInterest();
+            upstream.paused.add(this);
+            if (!upstream.isBacklogged()) {
+                upstream.resumePaused(); // drained while this was pausing
+            }
+        }
+
+        void resumeReading() {
+            readPaused = false;
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            int ops = (readPaused ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            if (key != null && key.isValid()) {
+                key.interestOps(ops);
+            }
+        }
+
+        private void forwardLine() {
+            String line = new String(partialLine.toByteArray(), StandardCharsets.UTF_8);
+            partialLine.reset();
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            upstream.send(MuxProtocol.data(streamId, line));
+        }
+
+        // Called from upstream reader threads
+        void enqueue(String line) {
+            enqueue((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Broadcast frames share one encoded array across all sessions
+        void enqueue(byte[] encodedLine) {
+            if (queuedBytes.addAndGet(encodedLine.length) > MAX_SESSION_QUEUED) {
+                if (!closed) {
+                    SLOW_CLIENTS_CLOSED.increment();
+                    LOG.warn("Closing stream {}: client is not reading ({} bytes queued)", streamId,
+                            queuedBytes.get());
+                }
+                close(true);
+                return;
+            }
+            outbound.add(ByteBuffer.wrap(encodedLine));
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        void flush() {
+            if (closed || key == null) {
+                return; // registration flushes anything queued before it
+            }
+            try {
+                ByteBuffer head;
+                while ((head = outbound.peek()) != null) {
+                    queuedBytes.addAndGet(-channel.write(head));
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    outbound.poll();
+                }
+                updateInterest();
+            } catch (IOException e) {
+                close(true);
+            }
+        }
+
+        void close(boolean notifyServer) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sessions.remove(streamId);
+            if (notifyServer) {
+                upstream.send(MuxProtocol.close(streamId));
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // One long-lived link to the main server with its own reader thread, and
+    // a writer thread for each connection of it
+    private final class Upstream implements Runnable {
+        final int index;
+        final Queue<Session> paused = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private volatile Socket socket;
+        // Frames for the writer; null while not connected
+        private volatile BlockingQueue<String> outgoing;
+
+        Upstream(int index) {
+            this.index = index;
+        }
+
+        void start() {
+            Thread thread = new Thread(this, "mux-proxy-upstream-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        boolean isConnected() {
+            return outgoing != null;
+        }
+
+        boolean isBacklogged() {
+            return queuedBytes.get() > MAX_UPSTREAM_QUEUED;
+        }
+
+        // Never blocks; frames sent while the link is down are dropped, as
+        // its sessions are closed anyway
+        void send(String frame) {
+            BlockingQueue<String> queue = outgoing;
+            if (queue != null) {
+                queuedBytes.addAndGet(frame.length() + 1);
+                queue.add(frame);
+            }
+        }
+
+        void resumePaused() {
+            Session session;
+            boolean any = false;
+            while ((session = paused.poll()) != null) {
+                pendingResumes.add(session);
+                any = true;
+            }
+            if (any) {
+                selector.wakeup();
+            }
+        }
+
+        private void writeLoop(Writer writer, BlockingQueue<String> queue) {
+            try {
+                while (true) {
+                    String frame = queue.take();
+                    do {
+                        writer.write(frame);
+                        writer.write('\n');
+                        if (queuedBytes.addAndGet(-(frame.length() + 1)) <= MAX_UPSTREAM_QUEUED / 2
+                                && !paused.isEmpty()) {
+                            resumePaused();
+                        }
+                    } while ((frame = queue.poll()) != null);
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                closeSocket(); // the reader sees the link fail and reconnects
+            } catch (InterruptedException e) {
+                // link closed
+            }
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                Thread writerThread = null;
+                try (Socket s = SocketProfile.forEndpoint("proxy.upstream", SocketProfile.PROXY)
+                        .connect(serverHost, serverPort)) {
+                    socket = s;
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                    Writer writer = new BufferedWriter(
+                            new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+                    writer.write(MuxProtocol.hello(proxyId, edgeFanout));
+                    writer.write('\n');
+                    writer.flush();
+                    BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+                    writerThread = new Thread(() -> writeLoop(writer, queue), "mux-proxy-upstream-writer-" + index);
+                    writerThread.setDaemon(true);
+                    writerThread.start();
+                    outgoing = queue;
+                    LOG.info("Upstream link {} connected to {}:{}", index, serverHost, serverPort);
+
+                    String frame;
+                    while ((frame = in.readLine()) != null) {
+                        dispatch(frame);
+                    }
+                } catch (IOException e) {
+                    if (isRunning) {
+                        LOG.warn("Upstream link {} failed: {}", index, e.getMessage());
+                    }
+                } finally {
+                    outgoing = null;
+                    if (writerThread != null) {
+                        writerThread.interrupt();
+                        writerThread = null;
+                    }
+                    queuedBytes.set(0);
+                    paused.clear();
+                    dropSessions();
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void dispatch(String frame) {
+            int streamId;
+            try {
+                streamId = MuxProtocol.streamId(frame);
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                LOG.warn("Bad mux frame from server: {}", frame);
+                return;
+            }
+            if (MuxProtocol.opcode(frame) == MuxProtocol.BROADCAST) {
+                fanOut(streamId, MuxProtocol.payload(frame));
+                return;
+            }
+
+            Session session = sessions.get(streamId);
+            if (session == null) {
+                return;
+            }
+            switch (MuxProtocol.opcode(frame)) {
+                case MuxProtocol.DATA:
+                    session.enqueue(MuxProtocol.payload(frame));
+                    break;
+                case MuxProtocol.CLOSE:
+                    session.close(false);
+                    break;
+                default:
+                    LOG.warn("Unknown mux opcode from server: {}", frame);
+            }
+        }
+
+        // The server sends a broadcast on every link; each covers its own
+        private void fanOut(int excludeStreamId, String payload) {
+            byte[] encoded = (payload + "\n").getBytes(StandardCharsets.UTF_8);
+            for (Session session : sessions.values()) {
+                if (session.upstream == this && session.streamId != excludeStreamId) {
+                    session.enqueue(encoded);
+                }
+            }
+        }
+
+        // Sessions cannot survive the loss of their link
+        private void dropSessions() {
+            for (Session session : sessions.values()) {
+                if (session.upstream == this) {
+                    session.close(false);
+                }
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                Socket s = socket;
+                if (s != null) s.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        void close() {
+            closeSocket();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// Who is online. Joins and leaves are not announced one by one: they are
+// collected and sent as a single presence frame once per interval, so a mass
+// reconnect costs every client one frame per interval instead of one per
+// user. A nickname that leaves and comes back within the interval, as on a
+// reconnect, does not appear in the delta at all.
+//
+// Deltas are relative to the roster last announced, which is also what
+// snapshot() returns, so a client that fetches a snapshot and applies the
+// deltas after it stays in step:
+//   {"type":"presence","joined":["alice"],"left":["bob"],"online":42}
+public class PresenceService {
+    private final long intervalNanos;
+    private final HashedTimingWheel wheel;
+    private final Executor executor;
+    private final Consumer<String> publisher;
+
+    private final Set<String> online = ConcurrentHashMap.newKeySet();
+    private final Metrics.Gauge onlineGauge;
+    // Guarded by this
+    private final Set<String> announced = new TreeSet<>();
+    private final Set<String> changed = new TreeSet<>();
+    private boolean flushScheduled;
+    // Held while publishing, so deltas go out in order without holding up
+    // joined() and left()
+    private final Object publishLock = new Object();
+
+    private static final Metrics.Counter EVENTS = Metrics.counter("chat_presence_events_total");
+    private static final Metrics.Counter DELTAS = Metrics.counter("chat_presence_deltas_total");
+    private static final Metrics.Counter COALESCED = Metrics.counter("chat_presence_coalesced_total");
+
+    // The wheel only triggers a flush; it runs on the executor, since
+    // publishing writes to every client
+    public PresenceService(long interval, TimeUnit unit, HashedTimingWheel wheel, Executor executor,
+                           Consumer<String> publisher) {
+        this.intervalNanos = unit.toNanos(interval);
+        this.wheel = wheel;
+        this.executor = executor;
+        this.publisher = publisher;
+        onlineGauge = Metrics.gauge("chat_presence_online", online::size);
+    }
+
+    public void close() {
+        onlineGauge.unregister();
+    }
+
+    public void joined(String nickname) {
+        online.add(nickname);
+        changed(nickname);
+    }
+
+    public void left(String nickname) {
+        online.remove(nickname);
+        changed(nickname);
+    }
+
+    public boolean isOnline(String nickname) {
+        return online.contains(nickname);
+    }
+
+    // The roster as of the last delta, sorted
+    public synchronized List<String> snapshot() {
+        return new ArrayList<>(announced);
+    }
+
+    private void changed(String nickname) {
+        EVENTS.increment();
+        synchronized (this) {
+            if (!changed.add(nickname)) {
+                COALESCED.increment();
+            }
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        if (intervalNanos > 0) {
+            wheel.schedule(() -> executor.execute(this::flush), intervalNanos, TimeUnit.NANOSECONDS);
+        } else {
+            flush();
+        }
+    }
+
+    // Sends whatever changed since the last delta; nothing if it all cancelled out
+    public void flush() {
+        synchronized (publishLock) {
+            JSONArray joined = new JSONArray();
+            JSONArray left = new JSONArray();
+            int count;
+            synchronized (this) {
+                flushScheduled = false;
+                for (String nickname : changed) {
+                    boolean now = online.contains(nickname);
+                    if (now && announced.add(nickname)) {
+                        joined.put(nickname);
+                    } else if (!now && announced.remove(nickname)) {
+                        left.put(nickname);
+                    } else {
+                        COALESCED.increment();
+                    }
+                }
+                changed.clear();
+                count = announced.size();
+            }
+            if (joined.isEmpty() && left.isEmpty()) {
+                return;
+            }
+
+            JSONObject delta = new JSONObject();
+            delta.put("type", "presence");
+            delta.put("joined", joined);
+            delta.put("left", left);
+            delta.put("online", count);
+            delta.put("timestamp", System.currentTimeMillis());
+            DELTAS.increment();
+            publisher.accept(delta.toString());
+        }
+    }
+}
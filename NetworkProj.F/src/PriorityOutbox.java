@@ -0,0 +1,250 @@
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Outbound frames of one connection, queued by class instead of in one FIFO:
+//   CONTROL  heartbeats, errors, replies and flow control; always first
+//   CHAT     messages, presence, offers
+//   BULK     file transfer streams, in order with their completion
+// CHAT and BULK share what is left by deficit round robin: each turn a lane
+// may write its weight in quanta of characters, so chat gets through ahead of
+// queued chunks while a transfer keeps its share and never starves.
+//
+// send() writes inline: whichever thread queues a frame while nobody is
+// writing writes it, along with anything queued meanwhile, and after a few
+// frames hands the rest to the executor. Even one frame can block on a full
+// socket, so that is only for a connection's own replies; frames from other
+// sessions and broadcasts use enqueue() and drainLater(), which leaves all
+// of the writing to the executor. The bulk lane is short and send() waits while
+// it is full, so a transfer is still paced by the connection instead of
+// piling up here. A lane full of MAX_LANE_FRAMES refuses further frames;
+// a peer that far behind is not reading, and the caller closes it.
+//
+//   chat.outbox.weights=4,1    chat and bulk shares
+public final class PriorityOutbox {
+    public enum Lane {
+        CONTROL, CHAT, BULK
+    }
+
+    public interface Sink {
+        void write(String frame);
+        void flush();
+    }
+
+    private static final int QUANTUM = 4096;
+    private static final int MAX_INLINE_FRAMES = 32;
+    private static final int BULK_LANE_FRAMES = 16;
+    private static final int MAX_LANE_FRAMES = 10_000;
+    private static final int[] WEIGHTS = weights(System.getProperty("chat.outbox.weights", "4,1"));
+    private static final Log LOG = Log.get("outbox");
+
+    private static final Metrics.Counter DROPPED = Metrics.counter("chat_outbox_dropped_total");
+    private static final Metrics.Counter HANDOFFS = Metrics.counter("chat_outbox_handoffs_total");
+    private static final LatencyHistogram[] QUEUED = new LatencyHistogram[Lane.values().length];
+
+    static {
+        for (Lane lane : Lane.values()) {
+            QUEUED[lane.ordinal()] = Metrics.histogram("chat_outbox_queued_ns_" + lane.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private static final class Entry {
+        final String frame;
+        final Lane lane;
+        final long queuedAt = System.nanoTime();
+
+        Entry(String frame, Lane lane) {
+            this.frame = frame;
+            this.lane = lane;
+        }
+    }
+
+    private final Sink sink;
+    private final Executor executor;
+    // Guarded by this. Every session has an outbox and most are empty at any
+    // moment, so the lanes start small and grow when a burst arrives.
+    private final ArrayDeque<Entry> control = new ArrayDeque<>(2);
+    private final ArrayDeque<Entry> chat = new ArrayDeque<>(2);
+    private final ArrayDeque<Entry> bulk = new ArrayDeque<>(2);
+    private long chatDeficit;
+    private long bulkDeficit;
+    private boolean bulkTurn;
+    private boolean writing;
+    private boolean closed;
+
+    public PriorityOutbox(Sink sink, Executor executor) {
+        this.sink = sink;
+        this.executor = executor;
+    }
+
+    private static int[] weights(String value) {
+        String[] parts = value.split(",");
+        return new int[] {Math.max(1, Integer.parseInt(parts[0].trim())), Math.max(1, Integer.parseInt(parts[1].trim()))};
+    }
+
+    // Queues the frame and writes unless another thread already is; waits
+    // while the bulk lane is full. False if the lane is full and the frame
+    // was dropped.
+    public boolean send(String frame, Lane lane) {
+        if (lane == Lane.BULK) {
+            awaitBulkSpace();
+        }
+        boolean queued = enqueue(frame, lane);
+        drain();
+        return queued;
+    }
+
+    // Queues without writing; drain() writes. False if the lane is full and
+    // the frame was dropped.
+    public synchronized boolean enqueue(String frame, Lane lane) {
+        if (closed) {
+            return true;
+        }
+        ArrayDeque<Entry> queue = lane == Lane.CONTROL ? control : lane == Lane.CHAT ? chat : bulk;
+        if (queue.size() >= MAX_LANE_FRAMES) {
+            DROPPED.increment();
+            return false;
+        }
+        queue.add(new Entry(frame, lane));
+        return true;
+    }
+
+    public void drain() {
+        synchronized (this) {
+            if (writing || closed) {
+                return;
+            }
+            writing = true;
+        }
+        write(MAX_INLINE_FRAMES);
+    }
+
+    // Like drain(), for callers that must never block on the connection
+    public void drainLater() {
+        synchronized (this) {
+            if (writing || closed) {
+                return;
+            }
+            writing = true;
+        }
+        try {
+            executor.execute(() -> write(Integer.MAX_VALUE));
+        } catch (RejectedExecutionException e) {
+            write(Integer.MAX_VALUE); // shutting down
+        }
+    }
+
+    // Drops everything queued; later frames are ignored. False if it was
+    // already closed.
+    public synchronized boolean close() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        control.clear();
+        chat.clear();
+        bulk.clear();
+        notifyAll();
+        return true;
+    }
+
+    // For producers queueing bulk frames without send(), so a transfer is
+    // still paced by the connection
+    public synchronized void awaitBulkSpace() {
+        // Nobody writing means nothing would make room; the caller writes
+        while (!closed && writing && bulk.size() >= BULK_LANE_FRAMES) {
+            try {
+                wait(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Runs with writing set; clears it once every lane is empty, or hands it
+    // on with the rest of the work
+    private void write(int budget) {
+        int written = 0;
+        try {
+            while (true) {
+                Entry entry;
+                synchronized (this) {
+                    entry = closed ? null : next();
+                    if (entry != null && entry.lane == Lane.BULK) {
+                        notifyAll();
+                    }
+                }
+                if (entry == null) {
+                    sink.flush();
+                    synchronized (this) {
+                        if (closed || control.isEmpty() && chat.isEmpty() && bulk.isEmpty()) {
+                            writing = false;
+                            notifyAll();
+                            return;
+                        }
+                    }
+                    continue;
+                }
+
+                QUEUED[entry.lane.ordinal()].recordSince(entry.queuedAt);
+                sink.write(entry.frame);
+                if (++written >= budget) {
+                    sink.flush();
+                    try {
+                        executor.execute(() -> write(Integer.MAX_VALUE));
+                        HANDOFFS.increment();
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        budget = Integer.MAX_VALUE; // shutting down; finish here
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Dropping queued frames after a failed write: {}", e.toString());
+            synchronized (this) {
+                writing = false;
+            }
+            close();
+        }
+    }
+
+    // Control first, then chat and bulk by deficit round robin
+    private Entry next() {
+        if (!control.isEmpty()) {
+            return control.poll();
+        }
+        if (chat.isEmpty() && bulk.isEmpty()) {
+            return null;
+        }
+        while (true) {
+            ArrayDeque<Entry> queue = bulkTurn ? bulk : chat;
+            if (queue.isEmpty()) {
+                // An idle lane does not save up credit
+                if (bulkTurn) {
+                    bulkDeficit = 0;
+                } else {
+                    chatDeficit = 0;
+                }
+            } else {
+                int length = queue.peek().frame.length();
+                if (bulkTurn && length <= bulkDeficit) {
+                    bulkDeficit -= length;
+                    return queue.poll();
+                }
+                if (!bulkTurn && length <= chatDeficit) {
+                    chatDeficit -= length;
+                    return queue.poll();
+                }
+            }
+            // Turn over; the lane taking it gets its quantum
+            bulkTurn = !bulkTurn;
+            if (bulkTurn) {
+                bulkDeficit += (long) WEIGHTS[1] * QUANTUM;
+            } else {
+                chatDeficit += (long) WEIGHTS[0] * QUANTUM;
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.Locale;
+
+// Per-connection message budgets. Every connection gets its own buckets:
+// one shared by all of its messages and one per message class, so chat,
+// file and control traffic are limited independently. The Action decides
+// what happens to a message that is over budget. file_upload_chunk frames
+// of an upload are not limited here: the upload credit window paces them.
+//
+// Configured from system properties, budgets given as rate[/burst]:
+//   chat.ratelimit=off                  disable limiting
+//   chat.ratelimit.action=delay|drop|disconnect
+//   chat.ratelimit.connection=200/400   all messages of one connection
+//   chat.ratelimit.chat=10/20           public and private messages
+//   chat.ratelimit.file=100/200         file requests, relayed chunks and NACKs
+//   chat.ratelimit.control=5/10         nickname changes and everything else
+public final class RateLimitPolicy {
+    public enum Action {
+        DELAY,      // stop reading from the client until the budget allows it
+        DROP,       // discard the message, telling the client once
+        DISCONNECT  // close the connection
+    }
+
+    public enum MessageClass {
+        CHAT,
+        FILE,
+        CONTROL
+    }
+
+    // Returned by Limiter.acquire for a message that is over budget
+    public static final long REJECT = -1;
+
+    private static final MessageClass[] CLASSES = MessageClass.values();
+
+    private final Action action;
+    private double connectionRate = 200;
+    private int connectionBurst = 400;
+    private final double[] rates = {10, 100, 5};
+    private final int[] bursts = {20, 200, 10};
+
+    public RateLimitPolicy(Action action) {
+        this.action = action;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public RateLimitPolicy setConnectionBudget(double ratePerSecond, int burst) {
+        connectionRate = ratePerSecond;
+        connectionBurst = burst;
+        return this;
+    }
+
+    public RateLimitPolicy setBudget(MessageClass messageClass, double ratePerSecond, int burst) {
+        rates[messageClass.ordinal()] = ratePerSecond;
+        bursts[messageClass.ordinal()] = burst;
+        return this;
+    }
+
+    // The policy described by the chat.ratelimit.* properties, or null when
+    // limiting is switched off
+    public static RateLimitPolicy fromSystemProperties() {
+        if ("off".equalsIgnoreCase(System.getProperty("chat.ratelimit"))) {
+            return null;
+        }
+        String action = System.getProperty("chat.ratelimit.action", "delay");
+        RateLimitPolicy policy = new RateLimitPolicy(Action.valueOf(action.toUpperCase(Locale.ROOT)));
+
+        String connection = System.getProperty("chat.ratelimit.connection");
+        if (connection != null) {
+            policy.setConnectionBudget(parseRate(connection), parseBurst(connection));
+        }
+        for (MessageClass messageClass : CLASSES) {
+            String budget = System.getProperty("chat.ratelimit." + messageClass.name().toLowerCase(Locale.ROOT));
+            if (budget != null) {
+                policy.setBudget(messageClass, parseRate(budget), parseBurst(budget));
+            }
+        }
+        return policy;
+    }
+
+    private static double parseRate(String budget) {
+        int slash = budget.indexOf('/');
+        return Double.parseDouble(slash < 0 ? budget : budget.substring(0, slash));
+    }
+
+    // Burst defaults to one second's worth of tokens
+    private static int parseBurst(String budget) {
+        int slash = budget.indexOf('/');
+        return slash < 0 ? (int) Math.max(1, Math.ceil(parseRate(budget)))
+                : Integer.parseInt(budget.substring(slash + 1));
+    }
+
+    public static MessageClass classify(String type) {
+        switch (type) {
+            case "public_message":
+            case "private_message":
+                return MessageClass.CHAT;
+            case "file_transfer":
+            case "file_transfer_info":
+            case "file_chunk":
+            case "file_transfer_response":
+            case "file_upload_start":
+            case "file_upload_chunk":
+            case "file_upload_end":
+            case "file_transfer_nack":
+                return MessageClass.FILE;
+            default:
+                return MessageClass.CONTROL;
+        }
+    }
+
+    // mayDelay is false for connections whose reader is shared with other
+    // clients (multiplexed proxy links); DELAY degrades to DROP there
+    public Limiter newLimiter(boolean mayDelay) {
+        return new Limiter(action == Action.DELAY && !mayDelay ? Action.DROP : action);
+    }
+
+    // The buckets of one connection
+    public final class Limiter {
+        private final Action action;
+        private final TokenBucket connection;
+        private final TokenBucket[] buckets = new TokenBucket[CLASSES.length];
+
+        private Limiter(Action action) {
+            this.action = action;
+            this.connection = new TokenBucket(connectionRate, connectionBurst);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new TokenBucket(rates[i], bursts[i]);
+            }
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        // 0 when the message may be processed now; under DELAY the nanoseconds
+        // to wait first, otherwise REJECT when it is over budget
+        public long acquire(MessageClass messageClass) {
+            TokenBucket bucket = buckets[messageClass.ordinal()];
+            if (action == Action.DELAY) {
+                return Math.max(connection.reserve(1), bucket.reserve(1));
+            }
+            return connection.tryAcquire() && bucket.tryAcquire() ? 0 : REJECT;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// One stage of a staged pipeline, in the style of the LMAX Disruptor: a
+// preallocated ring of slots that any thread may claim and publish into, and
+// a single consumer thread that takes everything published so far as one
+// batch. The handler is told which event ends a batch, so it can defer
+// flushes and other per-batch work to it. A full ring makes publish() wait,
+// which pushes back on whatever feeds the stage; tryPublish() gives up
+// instead, for producers that must not wait on the stage.
+//
+// Metrics, per stage name:
+//   chat_pipeline_<name>_wait_ns       time from publish to handling
+//   chat_pipeline_<name>_service_ns    time in the handler per event
+//   chat_pipeline_<name>_batch_size    events per batch
+//   chat_pipeline_<name>_depth         events waiting
+public final class RingStage<E> {
+    public interface Handler<E> {
+        void onEvent(E event, boolean endOfBatch) throws Exception;
+    }
+
+    private static final Log LOG = Log.get("pipeline");
+
+    private static final class Slot {
+        volatile long sequence = -1;
+        Object event;
+        long publishedAt;
+    }
+
+    private final String name;
+    private final Slot[] ring;
+    private final int mask;
+    private final Handler<E> handler;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private volatile boolean consumerParked;
+    private volatile boolean running = true;
+    private final Thread consumer;
+
+    private final LatencyHistogram waitTime;
+    private final LatencyHistogram serviceTime;
+    private final LatencyHistogram batchSize;
+    private final Metrics.Gauge depthGauge;
+
+    // capacity is rounded up to a power of two
+    public RingStage(String name, int capacity, Handler<E> handler) {
+        this.name = name;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.handler = handler;
+
+        waitTime = Metrics.histogram("chat_pipeline_" + name + "_wait_ns");
+        serviceTime = Metrics.histogram("chat_pipeline_" + name + "_service_ns");
+        batchSize = Metrics.histogram("chat_pipeline_" + name + "_batch_size");
+        depthGauge = Metrics.gauge("chat_pipeline_" + name + "_depth", () -> claimed.get() - consumed);
+
+        consumer = new Thread(this::consume, "pipeline-" + name);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    // Any thread; waits while the ring is full
+    public void publish(E event) {
+        long sequence = claimed.getAndIncrement();
+        while (sequence - consumed >= ring.length) {
+            if (!running) {
+                return;
+            }
+            LockSupport.parkNanos(50_000);
+        }
+        fill(sequence, event);
+    }
+
+    // Any thread; false if the ring is full
+    public boolean tryPublish(E event) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length || !running) {
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        fill(sequence, event);
+        return true;
+    }
+
+    private void fill(long sequence, E event) {
+        Slot slot = ring[(int) (sequence & mask)];
+        slot.event = event;
+        slot.publishedAt = System.nanoTime();
+        slot.sequence = sequence;
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        depthGauge.unregister();
+        LockSupport.unpark(consumer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void consume() {
+        long next = 0;
+        while (running) {
+            // Everything published in order from next on is one batch
+            long end = next;
+            while (ring[(int) (end & mask)].sequence == end && end - next < ring.length) {
+                end++;
+            }
+            if (end == next) {
+                consumerParked = true;
+                if (ring[(int) (next & mask)].sequence != next) {
+                    LockSupport.parkNanos(1_000_000);
+                }
+                consumerParked = false;
+                continue;
+            }
+
+            batchSize.record(end - next);
+            for (long sequence = next; sequence < end; sequence++) {
+                Slot slot = ring[(int) (sequence & mask)];
+                E event = (E) slot.event;
+                slot.event = null;
+                long start = System.nanoTime();
+                waitTime.record(start - slot.publishedAt);
+                try {
+                    handler.onEvent(event, sequence == end - 1);
+                } catch (Exception e) {
+                    LOG.error("Pipeline stage {} failed on an event", name, e);
+                }
+                serviceTime.recordSince(start);
+                consumed = sequence + 1;
+            }
+            next = end;
+        }
+    }
+}
@@ -35,6 +35,7 @@ public class SecureChatClient {
         // Create socket
         SSLSocketFactory ssf = context.getSocketFactory();
         socket = (SSLSocket) ssf.createSocket(host, port);
+        SocketProfile.forEndpoint("client", SocketProfile.INTERACTIVE).apply(socket);
 
         // Enable all supported cipher suites
         socket.setEnabledCipherSuites(socket.getSupportedCipherSuites());
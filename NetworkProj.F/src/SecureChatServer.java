@@ -6,7 +6,9 @@ import java.util.*;
 import java.util.concurrent.*;
 
 public class SecureChatServer {
-    private SSLServerSocket serverSocket;
+    private static final Log LOG = Log.get("secure");
+    private ConnectionListener listener;
+    private SSLSocketFactory socketFactory;
     private ExecutorService threadPool;
     private Set<ClientHandler> clients = Collections.synchronizedSet(new HashSet<>());
     private static final int MAX_THREADS = 20;
@@ -25,27 +27,37 @@ public class SecureChatServer {
         SSLContext context = SSLContext.getInstance("TLS");
         context.init(kmf.getKeyManagers(), null, null);
 
-        SSLServerSocketFactory ssf = context.getServerSocketFactory();
-        serverSocket = (SSLServerSocket) ssf.createServerSocket(port);
-
-        // Configure SSL settings
-        serverSocket.setEnabledCipherSuites(serverSocket.getSupportedCipherSuites());
-        serverSocket.setNeedClientAuth(false); // Set to true for mutual authentication
+        // TLS is layered over plain sockets from the shared listener
+        socketFactory = context.getSocketFactory();
+        listener = new ConnectionListener("secure", port);
+        listener.setActiveConnections(clients::size);
 
         threadPool = Executors.newFixedThreadPool(MAX_THREADS);
-        System.out.println("Secure chat server started on port " + port);
+        LOG.info("Secure chat server started on port {}", port);
     }
 
     public void start() {
+        listener.serve(channel -> threadPool.execute(() -> serve(channel.socket())));
+        shutdown();
+    }
+
+    // The handshake and the username read block, so they run on the pool
+    // rather than on the acceptor
+    private void serve(Socket plain) {
         try {
-            while (!serverSocket.isClosed()) {
-                SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clients.add(clientHandler);
-                threadPool.execute(clientHandler);
-            }
+            SSLSocket clientSocket = (SSLSocket) socketFactory.createSocket(plain, null, true);
+            clientSocket.setEnabledCipherSuites(clientSocket.getSupportedCipherSuites());
+            clientSocket.setNeedClientAuth(false); // Set to true for mutual authentication
+
+            ClientHandler clientHandler = new ClientHandler(clientSocket);
+            clients.add(clientHandler);
+            clientHandler.run();
         } catch (IOException e) {
-            shutdown();
+            LOG.warn("Could not set up TLS for {}: {}", plain.getInetAddress(), e.getMessage());
+            try {
+                plain.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
@@ -65,15 +77,11 @@ public class SecureChatServer {
     }
 
     public void shutdown() {
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-            threadPool.shutdown();
-            clients.forEach(ClientHandler::close);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (listener != null) {
+            listener.close();
         }
+        threadPool.shutdown();
+        clients.forEach(ClientHandler::close);
     }
 
     private class ClientHandler implements Runnable {
@@ -128,7 +136,7 @@ public class SecureChatServer {
                 if (writer != null) writer.close();
                 if (socket != null && !socket.isClosed()) socket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                LOG.warn("Error closing client {}", username, e);
             }
         }
     }
@@ -148,8 +156,7 @@ public class SecureChatServer {
 
             server.start();
         } catch (Exception e) {
-            System.err.println("Server error: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("Server error: {}", e.getMessage(), e);
         }
     }
 }
\ No newline at end of file
@@ -2,15 +2,15 @@ import java.io.*;
 import java.net.*;
 
 public class Server {
+    private static final Log LOG = Log.get("server");
     private ServerSocket serverSocket;
 
     public Server(int port) {
         try {
             serverSocket = new ServerSocket(port);
-            System.out.println("Server started on port " + port);
+            LOG.info("Server started on port {}", port);
         } catch (IOException e) {
-            System.err.println("Could not start server on port " + port);
-            e.printStackTrace();
+            LOG.error("Could not start server on port {}", port, e);
         }
     }
 
@@ -18,14 +18,14 @@ public class Server {
         while (true) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
+                SocketProfile.forEndpoint("server", SocketProfile.INTERACTIVE).apply(clientSocket);
+                LOG.info("New client connected: {}", clientSocket.getInetAddress());
 
                 // Handle client connection
                 handleClient(clientSocket);
 
             } catch (IOException e) {
-                System.err.println("Error accepting client connection");
-                e.printStackTrace();
+                LOG.error("Error accepting client connection", e);
             }
         }
     }
@@ -37,17 +37,16 @@ public class Server {
         ) {
             String inputLine;
             while ((inputLine = in.readLine()) != null) {
-                System.out.println("Received from client: " + inputLine);
+                LOG.debug("Received from client: {}", inputLine);
                 out.println("Server received: " + inputLine);
             }
         } catch (IOException e) {
-            System.err.println("Error handling client connection");
-            e.printStackTrace();
+            LOG.error("Error handling client connection", e);
         } finally {
             try {
                 clientSocket.close();
             } catch (IOException e) {
-                System.err.println("Error closing client socket");
+                LOG.warn("Error closing client socket");
             }
         }
     }
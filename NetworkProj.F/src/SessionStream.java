@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Line-framed reading and writing for one socket session that holds no
+// buffer while the session is idle. The reader blocks on a single byte,
+// then borrows a buffer from the pool for what follows and returns it once
+// everything that arrived has been consumed; frames being written collect
+// in a borrowed buffer until flush(). A BufferedReader and PrintWriter pair
+// keeps about 48 KB of buffers and coders for the life of the connection.
+//
+// Text is UTF-8. Lines end at '\n', with a '\r' before it dropped; a line
+// longer than MAX_LINE bytes fails the read. One thread reads and one at a
+// time writes.
+public final class SessionStream {
+    private static final int MAX_LINE = 1 << 20;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final BufferPool pool;
+    // Reader only; null while idle. A line longer than a pooled buffer
+    // moves to a larger array of its own, which is not returned.
+    private byte[] readBuffer;
+    private int readStart;
+    private int readEnd;
+    private int scanned; // readStart..scanned holds no '\n'
+    // Writer only; null between flushes
+    private byte[] writeBuffer;
+    private int writeEnd;
+
+    public SessionStream(Socket socket, BufferPool pool) throws IOException {
+        this.in = socket.getInputStream();
+        this.out = socket.getOutputStream();
+        this.pool = pool;
+    }
+
+    // The next line, or null at end of stream
+    public String readLine() throws IOException {
+        while (true) {
+            if (readBuffer == null) {
+                int first = in.read(); // idle: wait holding nothing
+                if (first < 0) {
+                    return null;
+                }
+                readBuffer = pool.borrow();
+                readBuffer[0] = (byte) first;
+                readStart = 0;
+                readEnd = 1;
+                scanned = 0;
+            }
+
+            for (; scanned < readEnd; scanned++) {
+                if (readBuffer[scanned] == '\n') {
+                    int end = scanned > readStart && readBuffer[scanned - 1] == '\r' ? scanned - 1 : scanned;
+                    String line = new String(readBuffer, readStart, end - readStart, StandardCharsets.UTF_8);
+                    readStart = ++scanned;
+                    if (readStart == readEnd) {
+                        releaseReadBuffer();
+                    }
+                    return line;
+                }
+            }
+
+            // Part of a line so far; read the rest
+            if (readEnd == readBuffer.length) {
+                makeRoom();
+            }
+            int read = in.read(readBuffer, readEnd, readBuffer.length - readEnd);
+            if (read < 0) {
+                // Like BufferedReader, a last line without a terminator counts
+                String line = new String(readBuffer, readStart, readEnd - readStart, StandardCharsets.UTF_8);
+                releaseReadBuffer();
+                return line;
+            }
+            readEnd += read;
+        }
+    }
+
+    private void makeRoom() throws IOException {
+        int length = readEnd - readStart;
+        if (readStart > 0) {
+            System.arraycopy(readBuffer, readStart, readBuffer, 0, length);
+        } else {
+            if (readBuffer.length >= MAX_LINE) {
+                throw new IOException("Line longer than " + MAX_LINE + " bytes");
+            }
+            byte[] larger = new byte[Math.min(MAX_LINE, readBuffer.length * 2)];
+            System.arraycopy(readBuffer, 0, larger, 0, length);
+            if (readBuffer.length == pool.getBufferSize()) {
+                pool.release(readBuffer);
+            }
+            readBuffer = larger;
+        }
+        readStart = 0;
+        readEnd = length;
+        scanned = length;
+    }
+
+    private void releaseReadBuffer() {
+        if (readBuffer.length == pool.getBufferSize()) {
+            pool.release(readBuffer);
+        }
+        readBuffer = null;
+    }
+
+    // Queues the frame and a line separator; flush() sends them
+    public void write(String frame) throws IOException {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        if (writeBuffer == null) {
+            writeBuffer = pool.borrow();
+        }
+        if (writeEnd + bytes.length + LINE_SEPARATOR.length > writeBuffer.length) {
+            writeOut();
+        }
+        if (bytes.length + LINE_SEPARATOR.length > writeBuffer.length) {
+            out.write(bytes); // larger than a buffer: straight to the socket
+        } else {
+            System.arraycopy(bytes, 0, writeBuffer, writeEnd, bytes.length);
+            writeEnd += bytes.length;
+        }
+        System.arraycopy(LINE_SEPARATOR, 0, writeBuffer, writeEnd, LINE_SEPARATOR.length);
+        writeEnd += LINE_SEPARATOR.length;
+    }
+
+    // Sends what write() queued and returns the buffer
+    public void flush() throws IOException {
+        if (writeBuffer == null) {
+            return;
+        }
+        try {
+            writeOut();
+            out.flush();
+        } finally {
+            pool.release(writeBuffer);
+            writeBuffer = null;
+        }
+    }
+
+    private void writeOut() throws IOException {
+        int length = writeEnd;
+        writeEnd = 0; // dropped if the write fails; the connection is gone
+        out.write(writeBuffer, 0, length);
+    }
+}
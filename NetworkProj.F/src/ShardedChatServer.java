@@ -0,0 +1,588 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.*;
+
+// Chat server on a fixed set of event loops ("shards") instead of a thread
+// per client. Each accepted connection is pinned to one shard, which alone
+// reads it, writes it and owns its session; the only state shared between
+// shards is the nickname directory.
+//
+// Frames are encoded to bytes once. A broadcast is written to the sessions of
+// the sender's shard directly and handed to every other shard as a single
+// entry on that shard's MpscQueue, and the shard writes it to its own
+// sessions; a private message reaches the recipient's shard the same way.
+// Output is collected per session and written with one gathering write per
+// loop iteration.
+//
+// Speaks ChatServer's protocol for nicknames, public and private messages,
+// presence and ping; file transfers, session resume, drain and clustering
+// stay on ChatServer.
+//
+//   chat.shards=<cores>               event loops
+//   chat.shard.max_pending_kb=4096    unsent output before a session is dropped
+public class ShardedChatServer {
+    private static final Log LOG = Log.get("shards");
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+    private static final int MAX_GATHER = 64;
+
+    private final ConnectionListener listener;
+    private final Shard[] shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final Map<String, Session> directory = new ConcurrentHashMap<>(); // nickname -> session
+    private final HashedTimingWheel timingWheel;
+    private final PresenceService presence;
+    private final List<Metrics.Gauge> gauges = new ArrayList<>();
+    private final long maxPendingBytes = Long.getLong("chat.shard.max_pending_kb", 4096) << 10;
+
+    private static final Metrics.Counter MESSAGES_RECEIVED = Metrics.counter("chat_shard_messages_received_total");
+    private static final Metrics.Counter CROSS_SHARD_FRAMES = Metrics.counter("chat_shard_cross_frames_total");
+    private static final Metrics.Counter WAKEUPS = Metrics.counter("chat_shard_wakeups_total");
+    private static final Metrics.Counter SLOW_CONSUMERS = Metrics.counter("chat_shard_slow_consumers_total");
+    private static final Metrics.Counter BROADCAST_DELIVERIES = Metrics.counter("chat_shard_broadcast_deliveries_total");
+    private static final Metrics.MessageTimers PROCESS_TIME = Metrics.messageTimers("chat_shard_process_ns_");
+
+    public ShardedChatServer(int port) throws IOException {
+        this(port, Integer.getInteger("chat.shards", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ShardedChatServer(int port, int shardCount) throws IOException {
+        listener = new ConnectionListener("sharded", port);
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+            Thread thread = new Thread(shards[i], "chat-shard-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            gauges.add(Metrics.gauge("chat_shard_" + i + "_sessions", shards[i]::getSessionCount));
+        }
+
+        // Publishing a delta only queues it on the shards, so it can run on
+        // the wheel thread
+        timingWheel = new HashedTimingWheel("chat-shard-timing-wheel", 100, TimeUnit.MILLISECONDS, 512);
+        long interval = (long) (Double.parseDouble(System.getProperty("chat.presence.interval", "1")) * 1e9);
+        presence = new PresenceService(interval, TimeUnit.NANOSECONDS, timingWheel, Runnable::run, frame -> {
+            byte[] encoded = encode(frame);
+            for (Shard shard : shards) {
+                shard.post(new Broadcast(encoded, null));
+            }
+        });
+
+        listener.setActiveConnections(this::getSessionCount);
+        gauges.add(Metrics.gauge("chat_shard_sessions", this::getSessionCount));
+        Metrics.exportDefaults();
+        LOG.info("Sharded chat server started on port {} with {} shards", getPort(), shards.length);
+    }
+
+    public int getPort() {
+        return listener.getPort();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int getSessionCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.getSessionCount();
+        }
+        return count;
+    }
+
+    // Accepts until stop(); blocks the caller
+    public void start() {
+        listener.serve(channel -> {
+            channel.configureBlocking(false);
+            Shard shard = shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)];
+            shard.post(new Session(shard, channel));
+        });
+    }
+
+    public void stop() {
+        listener.close();
+        timingWheel.stop();
+        presence.close();
+        for (Metrics.Gauge gauge : gauges) {
+            gauge.unregister();
+        }
+        for (Shard shard : shards) {
+            shard.running = false;
+            shard.selector.wakeup();
+        }
+        LOG.info("Sharded chat server stopped");
+    }
+
+    private static byte[] encode(String frame) {
+        return (frame + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Inbox entries besides new sessions
+    private static final class Broadcast {
+        final byte[] frame;
+        final Session exclude;
+
+        Broadcast(byte[] frame, Session exclude) {
+            this.frame = frame;
+            this.exclude = exclude;
+        }
+    }
+
+    private static final class Direct {
+        final Session target;
+        final byte[] frame;
+
+        Direct(Session target, byte[] frame) {
+            this.target = target;
+            this.frame = frame;
+        }
+    }
+
+    private final class Shard implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final MpscQueue<Object> inbox = new MpscQueue<>();
+        // Set by the first post after the loop last woke up, so a burst of
+        // posts costs one selector wakeup
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private final List<Session> sessions = new ArrayList<>();
+        private final List<Session> dirty = new ArrayList<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private volatile int sessionCount;
+        private volatile boolean running = true;
+
+        Shard(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        int getSessionCount() {
+            return sessionCount;
+        }
+
+        // Any thread
+        void post(Object item) {
+            inbox.offer(item);
+            if (!wakeupPending.getAndSet(true)) {
+                WAKEUPS.increment();
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    wakeupPending.set(false);
+                    drainInbox();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            session.handle(key);
+                        } catch (RuntimeException e) {
+                            failed(session, e);
+                        }
+                    }
+                    flushDirty();
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Shard {} loop error", index, e);
+                }
+            }
+
+            for (Session session : new ArrayList<>(sessions)) {
+                session.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void drainInbox() {
+            Object item;
+            while ((item = inbox.poll()) != null) {
+                if (item instanceof Broadcast) {
+                    Broadcast broadcast = (Broadcast) item;
+                    deliverLocal(broadcast.frame, broadcast.exclude);
+                } else if (item instanceof Direct) {
+                    Direct direct = (Direct) item;
+                    send(direct.target, direct.frame);
+                } else {
+                    Session session = (Session) item;
+                    try {
+                        register(session);
+                    } catch (RuntimeException e) {
+                        failed(session, e);
+                    }
+                }
+            }
+        }
+
+        // A handler or presence bug costs only the session it happened on,
+        // not the shard thread and every other session on it
+        private void failed(Session session, RuntimeException e) {
+            LOG.error("Closing {} after an unexpected error", session.nickname, e);
+            try {
+                session.close();
+            } catch (RuntimeException closeError) {
+                LOG.error("Error closing {}", session.nickname, closeError);
+            }
+        }
+
+        private void send(Session session, byte[] frame) {
+            try {
+                session.send(frame);
+            } catch (RuntimeException e) {
+                failed(session, e);
+            }
+        }
+
+        private void register(Session session) {
+            try {
+                session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+                session.index = sessions.size();
+                sessions.add(session);
+                sessionCount = sessions.size();
+            } catch (ClosedChannelException e) {
+                session.close();
+            }
+        }
+
+        private void unregister(Session session) {
+            if (session.index < 0) {
+                return;
+            }
+            Session last = sessions.remove(sessions.size() - 1);
+            if (last != session) {
+                sessions.set(session.index, last);
+                last.index = session.index;
+            }
+            session.index = -1;
+            sessionCount = sessions.size();
+        }
+
+        // Shard thread
+        void broadcast(byte[] frame, Session exclude) {
+            deliverLocal(frame, exclude);
+            for (Shard other : shards) {
+                if (other != this) {
+                    other.post(new Broadcast(frame, null));
+                    CROSS_SHARD_FRAMES.increment();
+                }
+            }
+        }
+
+        void deliverLocal(byte[] frame, Session exclude) {
+            for (int i = sessions.size() - 1; i >= 0; i--) {
+                Session session = sessions.get(i);
+                if (session != exclude) {
+                    send(session, frame);
+                }
+            }
+            BROADCAST_DELIVERIES.add(sessions.size());
+        }
+
+        // Shard thread
+        void deliver(Session target, byte[] frame) {
+            if (target.shard == this) {
+                send(target, frame);
+            } else {
+                target.shard.post(new Direct(target, frame));
+                CROSS_SHARD_FRAMES.increment();
+            }
+        }
+
+        private void flushDirty() {
+            for (int i = 0; i < dirty.size(); i++) {
+                Session session = dirty.get(i);
+                session.dirty = false;
+                try {
+                    session.flush();
+                } catch (RuntimeException e) {
+                    failed(session, e);
+                }
+            }
+            dirty.clear();
+        }
+    }
+
+    // One client connection; everything here runs on its shard's thread
+    private final class Session {
+        final Shard shard;
+        final SocketChannel channel;
+        SelectionKey key;
+        int index = -1; // in shard.sessions
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        int scanned; // bytes of in already searched for a newline
+        final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        long pendingBytes;
+        boolean dirty;
+        boolean closed;
+        String nickname;
+
+        Session(Shard shard, SocketChannel channel) {
+            this.shard = shard;
+            this.channel = channel;
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            byte[] bytes = in.array();
+            int end = in.position();
+            int start = 0;
+            for (int i = scanned; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    int length = i > start && bytes[i - 1] == '\r' ? i - start - 1 : i - start;
+                    handleLine(new String(bytes, start, length, StandardCharsets.UTF_8));
+                    if (closed) {
+                        return;
+                    }
+                    start = i + 1;
+                }
+            }
+
+            // Keep the partial line at the front, growing for long lines
+            if (start > 0) {
+                System.arraycopy(bytes, start, bytes, 0, end - start);
+                in.position(end - start);
+            }
+            scanned = in.position();
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_LINE_LENGTH) {
+                    LOG.warn("Dropping {}: line longer than {} bytes", channel.getRemoteAddress(), MAX_LINE_LENGTH);
+                    close();
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+        }
+
+        private void handleLine(String line) {
+            long start = System.nanoTime();
+            String type = "";
+            MESSAGES_RECEIVED.increment();
+            try {
+                JSONObject json = new JSONObject(line);
+                type = json.optString("type", "");
+                switch (type) {
+                    case "set_nickname":
+                        handleSetNickname(json.getString("nickname"));
+                        break;
+                    case "get_roster":
+                        JSONObject roster = new JSONObject();
+                        roster.put("type", "roster");
+                        roster.put("users", new JSONArray(presence.snapshot()));
+                        roster.put("timestamp", System.currentTimeMillis());
+                        sendJson(roster);
+                        break;
+                    case "public_message":
+                        handlePublicMessage(json.getString("content"));
+                        break;
+                    case "private_message":
+                        handlePrivateMessage(json.getString("recipient"), json.getString("content"));
+                        break;
+                    case "ping":
+                        JSONObject pong = new JSONObject();
+                        pong.put("type", "pong");
+                        pong.put("timestamp", System.currentTimeMillis());
+                        sendJson(pong);
+                        break;
+                    case "pong":
+                        break;
+                    case "quit":
+                        close();
+                        break;
+                    default:
+                        sendError("Unknown message type: " + type);
+                }
+            } catch (JSONException e) {
+                sendError("Invalid message format: " + e.getMessage());
+            } finally {
+                PROCESS_TIME.get(type).recordSince(start);
+            }
+        }
+
+        private void handleSetNickname(String newNickname) {
+            if (newNickname.trim().isEmpty()) {
+                sendError("Nickname cannot be empty");
+                return;
+            }
+            if (newNickname.equals(nickname) || directory.putIfAbsent(newNickname, this) != null) {
+                sendError("Nickname already in use");
+                return;
+            }
+            if (nickname != null) {
+                directory.remove(nickname, this);
+                presence.left(nickname);
+            }
+            nickname = newNickname;
+            presence.joined(newNickname);
+
+            JSONObject response = new JSONObject();
+            response.put("type", "nickname_set");
+            response.put("status", "success");
+            response.put("nickname", newNickname);
+            sendJson(response);
+        }
+
+        private void handlePublicMessage(String content) {
+            if (nickname == null) {
+                sendError("You must set a nickname first");
+                return;
+            }
+            if (content.trim().isEmpty()) {
+                sendError("Message cannot be empty");
+                return;
+            }
+            JSONObject broadcast = new JSONObject();
+            broadcast.put("type", "public_message");
+            broadcast.put("sender", nickname);
+            broadcast.put("content", content);
+            broadcast.put("timestamp", System.currentTimeMillis());
+            shard.broadcast(encode(broadcast.toString()), this);
+        }
+
+        private void handlePrivateMessage(String recipient, String content) {
+            if (nickname == null) {
+                sendError("You must set a nickname first");
+                return;
+            }
+            Session target = directory.get(recipient);
+            if (target == null) {
+                sendError("Recipient not found");
+                return;
+            }
+            JSONObject message = new JSONObject();
+            message.put("type", "private_message");
+            message.put("sender", nickname);
+            message.put("recipient", recipient);
+            message.put("content", content);
+            message.put("timestamp", System.currentTimeMillis());
+            shard.deliver(target, encode(message.toString()));
+
+            JSONObject confirmation = new JSONObject();
+            confirmation.put("type", "message_sent");
+            confirmation.put("status", "success");
+            confirmation.put("recipient", recipient);
+            sendJson(confirmation);
+        }
+
+        private void sendJson(JSONObject message) {
+            send(encode(message.toString()));
+        }
+
+        private void sendError(String error) {
+            JSONObject message = new JSONObject();
+            message.put("type", "error");
+            message.put("message", error);
+            sendJson(message);
+        }
+
+        // Queued until the end of the loop iteration; frames are shared, so
+        // each session gets its own view
+        void send(byte[] frame) {
+            if (closed) {
+                return;
+            }
+            if (pendingBytes + frame.length > maxPendingBytes) {
+                SLOW_CONSUMERS.increment();
+                LOG.warn("Dropping slow client {} with {} bytes unsent", nickname, pendingBytes);
+                close();
+                return;
+            }
+            outbound.add(ByteBuffer.wrap(frame));
+            pendingBytes += frame.length;
+            if (!dirty) {
+                dirty = true;
+                shard.dirty.add(this);
+            }
+        }
+
+        void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (!outbound.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer buffer : outbound) {
+                        shard.gather[count++] = buffer;
+                        if (count == MAX_GATHER) {
+                            break;
+                        }
+                    }
+                    long written = channel.write(shard.gather, 0, count);
+                    Arrays.fill(shard.gather, 0, count, null);
+                    pendingBytes -= written;
+                    while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                        outbound.poll();
+                    }
+                    if (written == 0 || count < MAX_GATHER && !outbound.isEmpty()) {
+                        break; // socket buffer full
+                    }
+                }
+                key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            shard.unregister(this);
+            outbound.clear();
+            pendingBytes = 0;
+            if (nickname != null && directory.remove(nickname, this)) {
+                presence.left(nickname);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ShardedChatServer server = new ShardedChatServer(args.length > 0 ? Integer.parseInt(args[0]) : 8081);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+
+// Socket options by purpose, applied by every endpoint instead of leaving
+// each connection on the platform defaults:
+//   interactive  chat sessions: no Nagle delay on small frames, keepalive to
+//                notice peers that vanished, buffers left to the kernel
+//   bulk         connections mostly carrying files: Nagle on, and large
+//                fixed buffers so a transfer is not held to the default window
+//   proxy        relays (load balancer, proxy, mux links, cluster bus): no
+//                Nagle, so a hop adds no delay, and buffers big enough to
+//                carry a transfer through without stalling either side
+//
+// An endpoint picks its profile by name, and every option of a profile can
+// be overridden:
+//   <endpoint>.socket.profile=bulk       e.g. chat.socket.profile, client.socket.profile
+//   socket.<profile>.nodelay=true
+//   socket.<profile>.sndbuf_kb=1024      0 leaves sizing to the kernel
+//   socket.<profile>.rcvbuf_kb=1024
+//   socket.<profile>.keepalive=true
+//   socket.<profile>.linger_s=-1         -1 for the ordinary close
+//
+// A buffer size set explicitly turns off the kernel's autotuning for that
+// socket, which is why only bulk and proxy set them.
+public final class SocketProfile {
+    public static final SocketProfile INTERACTIVE = load("interactive", true, 0, 0, true, -1);
+    public static final SocketProfile BULK = load("bulk", false, 1024, 1024, true, -1);
+    public static final SocketProfile PROXY = load("proxy", true, 256, 256, true, -1);
+
+    private final String name;
+    private final boolean noDelay;
+    private final int sendBuffer;    // bytes, 0 for the kernel's choice
+    private final int receiveBuffer; // bytes, 0 for the kernel's choice
+    private final boolean keepAlive;
+    private final int lingerSeconds; // -1 for the ordinary close
+
+    private SocketProfile(String name, boolean noDelay, int sendBuffer, int receiveBuffer, boolean keepAlive,
+            int lingerSeconds) {
+        this.name = name;
+        this.noDelay = noDelay;
+        this.sendBuffer = sendBuffer;
+        this.receiveBuffer = receiveBuffer;
+        this.keepAlive = keepAlive;
+        this.lingerSeconds = lingerSeconds;
+    }
+
+    private static SocketProfile load(String name, boolean noDelay, int sendKb, int receiveKb, boolean keepAlive,
+            int lingerSeconds) {
+        String prefix = "socket." + name + ".";
+        return new SocketProfile(name,
+                Boolean.parseBoolean(System.getProperty(prefix + "nodelay", Boolean.toString(noDelay))),
+                Integer.getInteger(prefix + "sndbuf_kb", sendKb) * 1024,
+                Integer.getInteger(prefix + "rcvbuf_kb", receiveKb) * 1024,
+                Boolean.parseBoolean(System.getProperty(prefix + "keepalive", Boolean.toString(keepAlive))),
+                Integer.getInteger(prefix + "linger_s", lingerSeconds));
+    }
+
+    public static SocketProfile named(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "interactive":
+                return INTERACTIVE;
+            case "bulk":
+                return BULK;
+            case "proxy":
+                return PROXY;
+            default:
+                throw new IllegalArgumentException("Unknown socket profile: " + name);
+        }
+    }
+
+    // The profile configured for an endpoint, or defaultProfile
+    public static SocketProfile forEndpoint(String endpoint, SocketProfile defaultProfile) {
+        String name = System.getProperty(endpoint + ".socket.profile");
+        return name != null ? named(name) : defaultProfile;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void apply(NetworkChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        if (sendBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+        }
+        if (receiveBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+        }
+        if (lingerSeconds >= 0) {
+            channel.setOption(StandardSocketOptions.SO_LINGER, lingerSeconds);
+        }
+    }
+
+    public void apply(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(noDelay);
+        socket.setKeepAlive(keepAlive);
+        if (sendBuffer > 0) {
+            socket.setSendBufferSize(sendBuffer);
+        }
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+        if (lingerSeconds >= 0) {
+            socket.setSoLinger(true, lingerSeconds);
+        }
+    }
+
+    // Accepted sockets take their receive buffer from the listening one, and
+    // the window scale is agreed during the handshake, so a large buffer has
+    // to be set before bind to be of use
+    public void applyToListener(ServerSocketChannel channel) throws IOException {
+        if (receiveBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+        }
+    }
+
+    // Options go on before connecting, for the same reason
+    public Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            apply(socket);
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public SocketChannel open(InetSocketAddress address) throws IOException {
+        return open(address, 0);
+    }
+
+    // A connect taking longer than timeoutMillis (0 for no limit) fails with
+    // SocketTimeoutException
+    public SocketChannel open(InetSocketAddress address, int timeoutMillis) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            apply(channel);
+            channel.socket().connect(address, timeoutMillis);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
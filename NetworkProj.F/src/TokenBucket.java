@@ -0,0 +1,65 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// Token bucket kept as a single timestamp (GCRA): the "theoretical arrival
+// time" at which the bucket would be full again. Taking a token pushes it
+// forward by one emission interval; a request conforms while it stays
+// within the burst window of now. Checks are one CAS on a field of the
+// bucket itself (no AtomicLong beside it, as every session holds several
+// buckets), so they never lock and never allocate.
+public final class TokenBucket {
+    private final long intervalNanos;
+    private final long burstNanos;
+    private volatile long theoreticalArrival = Long.MIN_VALUE;
+
+    private static final VarHandle THEORETICAL_ARRIVAL;
+
+    static {
+        try {
+            THEORETICAL_ARRIVAL = MethodHandles.lookup()
+                    .findVarHandle(TokenBucket.class, "theoreticalArrival", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // ratePerSecond tokens refill every second, up to burst tokens at once
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.burstNanos = intervalNanos * burst;
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    public boolean tryAcquire(int tokens) {
+        long now = System.nanoTime();
+        while (true) {
+            long tat = theoreticalArrival;
+            long next = Math.max(tat, now) + intervalNanos * tokens;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (THEORETICAL_ARRIVAL.compareAndSet(this, tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Takes the tokens unconditionally and returns how long the caller must
+    // wait before using them (0 when they were available)
+    public long reserve(int tokens) {
+        long now = System.nanoTime();
+        while (true) {
+            long tat = theoreticalArrival;
+            long next = Math.max(tat, now) + intervalNanos * tokens;
+            if (THEORETICAL_ARRIVAL.compareAndSet(this, tat, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+}